@@ -0,0 +1,198 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.apktool;
+
+import brut.androlib.AndrolibException;
+import brut.androlib.ApkDecoder;
+import brut.androlib.err.CantFindFrameworkResException;
+import brut.androlib.err.InFileNotFoundException;
+import brut.androlib.err.OutDirExistsException;
+import brut.androlib.res.FrameworkPackageCache;
+import brut.common.BrutException;
+import brut.util.TaskRunner;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Decodes many apks in one JVM. Each apk is decoded serially, with up to jobs apks in
+ * flight at once. Framework packages and extracted binaries are shared through the
+ * process-wide caches, so only the first decodes pay for loading them.
+ *
+ * A failing apk does not stop the batch; its error is recorded in the results.
+ */
+public class BatchDecoder {
+    public interface DecoderFactory {
+        ApkDecoder newDecoder() throws AndrolibException;
+    }
+
+    public BatchDecoder(DecoderFactory factory, File outRoot, int jobs) {
+        mFactory = factory;
+        mOutRoot = outRoot;
+        mJobs = Math.max(1, jobs);
+    }
+
+    public List<Result> decode(List<File> apkFiles) throws BrutException {
+        final List<Result> results = new ArrayList<Result>();
+        Set<String> outNames = new HashSet<String>();
+        for (File apkFile : apkFiles) {
+            results.add(new Result(apkFile, new File(mOutRoot, getOutName(apkFile, outNames))));
+        }
+
+        FrameworkPackageCache cache = FrameworkPackageCache.getInstance();
+        if (! cache.isEnabled()) {
+            cache.setMaxSize(FrameworkPackageCache.SHARED_SIZE);
+        }
+
+        LOGGER.info("Decoding " + results.size() + " apks with " + mJobs + " jobs...");
+        final AtomicInteger done = new AtomicInteger();
+        TaskRunner runner = new TaskRunner(mJobs, "apktool-batch");
+        for (final Result result : results) {
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() {
+                    decode(result);
+                    LOGGER.info(String.format("[%d/%d] %s %s (%d ms)", done.incrementAndGet(), results.size(),
+                            result.isSuccess() ? "Decoded" : "Failed", result.apkFile, result.millis));
+                }
+            });
+        }
+        runner.await();
+
+        LOGGER.fine(cache.toString());
+        return results;
+    }
+
+    private void decode(Result result) {
+        long start = System.nanoTime();
+        try {
+            ApkDecoder decoder = mFactory.newDecoder();
+            // the batch already keeps jobs apks in flight, more threads per apk would oversubscribe
+            decoder.setJobs(1);
+            decoder.setApkFile(result.apkFile);
+            decoder.setOutDir(result.outDir);
+            decoder.decode();
+        } catch (Exception ex) {
+            result.error = ex;
+        } finally {
+            result.millis = (System.nanoTime() - start) / 1000000;
+        }
+    }
+
+    /**
+     * Returns the apks to decode: every apk in a directory, or the files named in a list
+     * file, one path per line. Blank lines and lines starting with # are skipped.
+     */
+    public static List<File> listApkFiles(File input) throws IOException {
+        List<File> apkFiles = new ArrayList<File>();
+
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.isFile() && file.getName().toLowerCase().endsWith(".apk")) {
+                        apkFiles.add(file);
+                    }
+                }
+            }
+            return apkFiles;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (! line.isEmpty() && ! line.startsWith("#")) {
+                    apkFiles.add(new File(line));
+                }
+            }
+        }
+        return apkFiles;
+    }
+
+    /**
+     * Writes one tab separated line per apk: status, time in ms, apk, output directory and
+     * the reason of a failure.
+     */
+    public static void writeSummary(List<Result> results, File summaryFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(summaryFile),
+                StandardCharsets.UTF_8))) {
+            for (Result result : results) {
+                out.println((result.isSuccess() ? "OK" : "FAILED") + "\t" + result.millis + "\t"
+                        + result.apkFile.getPath() + "\t" + result.outDir.getPath()
+                        + (result.isSuccess() ? "" : "\t" + result.getErrorMessage()));
+            }
+        }
+    }
+
+    static String getOutName(File apkFile, Set<String> outNames) {
+        String name = apkFile.getName();
+        name = name.toLowerCase().endsWith(".apk") ? name.substring(0, name.length() - 4).trim() : name + ".out";
+
+        // apks from different directories may share a name
+        String outName = name;
+        for (int i = 2; ! outNames.add(outName); i++) {
+            outName = name + "-" + i;
+        }
+        return outName;
+    }
+
+    public static class Result {
+        public final File apkFile;
+        public final File outDir;
+        public long millis;
+        public Exception error;
+
+        public Result(File apkFile, File outDir) {
+            this.apkFile = apkFile;
+            this.outDir = outDir;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public String getErrorMessage() {
+            return BatchDecoder.getErrorMessage(error);
+        }
+    }
+
+    static String getErrorMessage(Exception error) {
+        if (error instanceof OutDirExistsException) {
+            return "Destination directory already exists. Use -f switch if you want to overwrite it.";
+        }
+        if (error instanceof InFileNotFoundException) {
+            return "Input file was not found or was not readable.";
+        }
+        if (error instanceof CantFindFrameworkResException) {
+            return "Can't find framework resources for package of id: "
+                    + ((CantFindFrameworkResException) error).getPkgId();
+        }
+        return error.getMessage() == null ? error.getClass().getName() : error.getMessage();
+    }
+
+    private final DecoderFactory mFactory;
+    private final File mOutRoot;
+    private final int mJobs;
+
+    private final static Logger LOGGER = Logger.getLogger(BatchDecoder.class.getName());
+}
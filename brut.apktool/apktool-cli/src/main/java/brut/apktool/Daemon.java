@@ -0,0 +1,275 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.apktool;
+
+import brut.androlib.res.FrameworkPackageCache;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one warm JVM serving jobs over a loopback socket, so the framework packages,
+ * extracted aapt binary and compiled parsers are reused between jobs.
+ *
+ * On start the daemon writes a random token to tokenFile, readable by the owner only.
+ * A client connects to 127.0.0.1 and sends a single line holding the token followed by
+ * the arguments of a regular apktool command, e.g. "<token> d -f -o /tmp/out /tmp/app.apk".
+ * Arguments with spaces may be double quoted. Relative paths are resolved against the
+ * daemon's working directory. The daemon answers with one line, "OK <ms>" or
+ * "ERROR <message>", and closes the connection. "ping", "stats" and "shutdown" are
+ * answered directly, and need the token too.
+ *
+ * Up to jobs requests run at once; further connections wait for a free worker.
+ */
+public class Daemon {
+    public interface Handler {
+        void handle(String[] args) throws Exception;
+    }
+
+    public Daemon(int port, int jobs, File tokenFile, Handler handler) {
+        mPort = port;
+        mJobs = Math.max(1, jobs);
+        mTokenFile = tokenFile;
+        mHandler = handler;
+    }
+
+    /**
+     * Returns the port the daemon listens on, once the token file has been written.
+     */
+    int getLocalPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * Serves requests until a shutdown request arrives, then waits for running jobs.
+     */
+    public void run() throws IOException {
+        FrameworkPackageCache cache = FrameworkPackageCache.getInstance();
+        if (! cache.isEnabled()) {
+            cache.setMaxSize(FrameworkPackageCache.SHARED_SIZE);
+        }
+
+        mServer = new ServerSocket(mPort, 50, InetAddress.getLoopbackAddress());
+        try {
+            mToken = newToken();
+            writeToken(mTokenFile, mToken);
+        } catch (IOException ex) {
+            mServer.close();
+            throw ex;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mJobs, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "apktool-daemon-" + mCount.incrementAndGet());
+            }
+        });
+        LOGGER.info("Apktool daemon listening on " + mServer.getInetAddress().getHostAddress() + ":"
+                + mServer.getLocalPort() + " with " + mJobs + " jobs");
+
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mServer.accept();
+                } catch (SocketException ex) {
+                    if (mServer.isClosed()) {
+                        break;
+                    }
+                    throw ex;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } finally {
+            mServer.close();
+            mTokenFile.delete();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOGGER.info("Apktool daemon stopped");
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+            String request = in.readLine();
+            out.write(process(request == null ? "" : request.trim()) + "\n");
+            out.flush();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not serve request", ex);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private String process(String request) {
+        int end = request.indexOf(' ');
+        String token = end == -1 ? request : request.substring(0, end);
+        if (! MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                mToken.getBytes(StandardCharsets.UTF_8))) {
+            LOGGER.warning("Rejected request with a wrong token");
+            return "ERROR Invalid token";
+        }
+        request = end == -1 ? "" : request.substring(end + 1).trim();
+
+        if (request.equals("ping")) {
+            return "OK";
+        }
+        if (request.equals("stats")) {
+            return "OK " + FrameworkPackageCache.getInstance();
+        }
+        if (request.equals("shutdown")) {
+            try {
+                mServer.close();
+            } catch (IOException ignored) {}
+            return "OK";
+        }
+
+        List<String> args;
+        try {
+            args = splitArgs(request);
+        } catch (IllegalArgumentException ex) {
+            return "ERROR " + ex.getMessage();
+        }
+        if (args.isEmpty()) {
+            return "ERROR Empty request";
+        }
+
+        LOGGER.info("Running: " + request);
+        long start = System.nanoTime();
+        try {
+            mHandler.handle(args.toArray(new String[0]));
+        } catch (Exception ex) {
+            LOGGER.log(Level.WARNING, "Failed: " + request, ex);
+            return "ERROR " + BatchDecoder.getErrorMessage(ex).replace('\n', ' ');
+        }
+        return "OK " + (System.nanoTime() - start) / 1000000;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Writes token to a new file only its owner may read, replacing any previous one.
+     */
+    private static void writeToken(File file, String token) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && ! dir.mkdirs() && ! dir.isDirectory()) {
+            throw new IOException("Can't create directory: " + dir);
+        }
+        Files.deleteIfExists(file.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file.toPath());
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(file.toPath(), (token + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static List<String> splitArgs(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = ! quoted;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && ! quoted) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+    private final int mPort;
+    private final int mJobs;
+    private final File mTokenFile;
+    private final Handler mHandler;
+    private volatile ServerSocket mServer;
+    private volatile String mToken;
+
+    public final static int DEFAULT_PORT = 7547;
+    public final static String TOKEN_FILENAME = "daemon.token";
+    private final static int REQUEST_TIMEOUT = 30000;
+
+    private final static Logger LOGGER = Logger.getLogger(Daemon.class.getName());
+}
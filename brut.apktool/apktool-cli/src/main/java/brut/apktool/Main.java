@@ -20,13 +20,16 @@ import brut.androlib.*;
 import brut.androlib.err.CantFindFrameworkResException;
 import brut.androlib.err.InFileNotFoundException;
 import brut.androlib.err.OutDirExistsException;
+import brut.androlib.res.AndrolibResources;
 import brut.common.BrutException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.*;
 
 import brut.directory.DirectoryException;
+import brut.util.TaskRunner;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
@@ -80,12 +83,18 @@ public class Main {
             if (opt.equalsIgnoreCase("d") || opt.equalsIgnoreCase("decode")) {
                 cmdDecode(commandLine);
                 cmdFound = true;
+            } else if (opt.equalsIgnoreCase("bd") || opt.equalsIgnoreCase("batch-decode")) {
+                cmdBatchDecode(commandLine);
+                cmdFound = true;
             } else if (opt.equalsIgnoreCase("b") || opt.equalsIgnoreCase("build")) {
                 cmdBuild(commandLine);
                 cmdFound = true;
             } else if (opt.equalsIgnoreCase("if") || opt.equalsIgnoreCase("install-framework")) {
                 cmdInstallFramework(commandLine);
                 cmdFound = true;
+            } else if (opt.equalsIgnoreCase("daemon")) {
+                cmdDaemon(commandLine);
+                cmdFound = true;
             } else if (opt.equalsIgnoreCase("publicize-resources")) {
                 cmdPublicizeResources(commandLine);
                 cmdFound = true;
@@ -107,9 +116,65 @@ public class Main {
 
         int paraCount = cli.getArgList().size();
         String apkName = (String) cli.getArgList().get(paraCount - 1);
-        File outDir = null;
+        File outDir = setupDecode(decoder, cli, apkName);
+
+        try {
+            decoder.decode();
+        } catch (OutDirExistsException ex) {
+            System.err
+                    .println("Destination directory ("
+                            + outDir.getAbsolutePath()
+                            + ") "
+                            + "already exists. Use -f switch if you want to overwrite it.");
+            System.exit(1);
+        } catch (InFileNotFoundException ex) {
+            System.err.println("Input file (" + apkName + ") " + "was not found or was not readable.");
+            System.exit(1);
+        } catch (CantFindFrameworkResException ex) {
+            System.err
+                    .println("Can't find framework resources for package of id: "
+                            + String.valueOf(ex.getPkgId())
+                            + ". You must install proper "
+                            + "framework files, see project website for more info.");
+            System.exit(1);
+        } catch (IOException ex) {
+            System.err.println("Could not modify file. Please ensure you have permission.");
+            System.exit(1);
+        } catch (DirectoryException ex) {
+            System.err.println("Could not modify internal dex files. Please ensure you have permission.");
+            System.exit(1);
+        }
+
+    }
+
+    private static File setupDecode(ApkDecoder decoder, CommandLine cli, String apkName) throws AndrolibException {
+        File outDir;
+
+        setDecodeOptions(decoder, cli);
+        if (cli.hasOption("j") || cli.hasOption("jobs")) {
+            decoder.setJobs(Integer.parseInt(cli.getOptionValue("j")));
+        }
+        if (cli.hasOption("o") || cli.hasOption("output")) {
+            outDir = new File(cli.getOptionValue("o"));
+            decoder.setOutDir(outDir);
+        } else {
+
+            // make out folder manually using name of apk
+            String outName = apkName;
+            outName = outName.endsWith(".apk") ? outName.substring(0,
+                    outName.length() - 4).trim() : outName + ".out";
+
+            // make file from path
+            outName = new File(outName).getName();
+            outDir = new File(outName);
+            decoder.setOutDir(outDir);
+        }
 
-        // check for options
+        decoder.setApkFile(new File(apkName));
+        return outDir;
+    }
+
+    private static void setDecodeOptions(ApkDecoder decoder, CommandLine cli) throws AndrolibException {
         if (cli.hasOption("s") || cli.hasOption("no-src")) {
             decoder.setDecodeSources(ApkDecoder.DECODE_SOURCES_NONE);
         }
@@ -141,51 +206,99 @@ public class Main {
         if (cli.hasOption("api")) {
             decoder.setApi(Integer.parseInt(cli.getOptionValue("api")));
         }
-        if (cli.hasOption("o") || cli.hasOption("output")) {
-            outDir = new File(cli.getOptionValue("o"));
-            decoder.setOutDir(outDir);
-        } else {
+        if (cli.hasOption("smali-cache")) {
+            decoder.setSmaliCacheDir(cli.getOptionValue("smali-cache"));
+        }
+    }
 
-            // make out folder manually using name of apk
-            String outName = apkName;
-            outName = outName.endsWith(".apk") ? outName.substring(0,
-                    outName.length() - 4).trim() : outName + ".out";
+    private static void cmdBatchDecode(final CommandLine cli) throws BrutException, IOException {
+        int paraCount = cli.getArgList().size();
+        File input = new File((String) cli.getArgList().get(paraCount - 1));
+        File outRoot = new File(cli.hasOption("o") ? cli.getOptionValue("o") : ".");
 
-            // make file from path
-            outName = new File(outName).getName();
-            outDir = new File(outName);
-            decoder.setOutDir(outDir);
+        if (! input.exists()) {
+            System.err.println("Input (" + input + ") was not found.");
+            System.exit(1);
         }
+        List<File> apkFiles = BatchDecoder.listApkFiles(input);
+        outRoot.mkdirs();
 
-        decoder.setApkFile(new File(apkName));
+        int jobs = TaskRunner.defaultJobs();
+        if (cli.hasOption("j") || cli.hasOption("jobs")) {
+            jobs = Integer.parseInt(cli.getOptionValue("j"));
+        }
 
-        try {
-            decoder.decode();
-        } catch (OutDirExistsException ex) {
-            System.err
-                    .println("Destination directory ("
-                            + outDir.getAbsolutePath()
-                            + ") "
-                            + "already exists. Use -f switch if you want to overwrite it.");
-            System.exit(1);
-        } catch (InFileNotFoundException ex) {
-            System.err.println("Input file (" + apkName + ") " + "was not found or was not readable.");
-            System.exit(1);
-        } catch (CantFindFrameworkResException ex) {
-            System.err
-                    .println("Can't find framework resources for package of id: "
-                            + String.valueOf(ex.getPkgId())
-                            + ". You must install proper "
-                            + "framework files, see project website for more info.");
-            System.exit(1);
-        } catch (IOException ex) {
-            System.err.println("Could not modify file. Please ensure you have permission.");
-            System.exit(1);
-        } catch (DirectoryException ex) {
-            System.err.println("Could not modify internal dex files. Please ensure you have permission.");
+        BatchDecoder batch = new BatchDecoder(new BatchDecoder.DecoderFactory() {
+            @Override
+            public ApkDecoder newDecoder() throws AndrolibException {
+                ApkDecoder decoder = new ApkDecoder();
+                setDecodeOptions(decoder, cli);
+                return decoder;
+            }
+        }, outRoot, jobs);
+        List<BatchDecoder.Result> results = batch.decode(apkFiles);
+
+        File summaryFile = new File(cli.hasOption("summary")
+                ? cli.getOptionValue("summary")
+                : new File(outRoot, "batch-summary.txt").getPath());
+        BatchDecoder.writeSummary(results, summaryFile);
+
+        int failed = 0;
+        for (BatchDecoder.Result result : results) {
+            if (! result.isSuccess()) {
+                System.err.println("Could not decode " + result.apkFile + ": " + result.getErrorMessage());
+                failed++;
+            }
+        }
+        System.out.println("Decoded " + (results.size() - failed) + " of " + results.size()
+                + " apks. Summary written to: " + summaryFile);
+        if (failed > 0) {
             System.exit(1);
         }
+    }
+
+    private static void cmdDaemon(CommandLine cli) throws AndrolibException, IOException {
+        int port = Daemon.DEFAULT_PORT;
+        if (cli.hasOption("port")) {
+            port = Integer.parseInt(cli.getOptionValue("port"));
+        }
+        int jobs = TaskRunner.defaultJobs();
+        if (cli.hasOption("j") || cli.hasOption("jobs")) {
+            jobs = Integer.parseInt(cli.getOptionValue("j"));
+        }
+
+        // the token goes next to the framework folder, e.g. ~/.local/share/apktool/daemon.token
+        AndrolibResources res = new AndrolibResources();
+        res.apkOptions = new ApkOptions();
+        File tokenFile = new File(res.getFrameworkDir().getParentFile(), Daemon.TOKEN_FILENAME);
+
+        new Daemon(port, jobs, tokenFile, new Daemon.Handler() {
+            @Override
+            public void handle(String[] args) throws Exception {
+                CommandLine jobCli;
+                // commons-cli resets the shared option objects while parsing
+                synchronized (allOptions) {
+                    jobCli = new PosixParser().parse(allOptions, args, false);
+                }
 
+                String cmd = jobCli.getArgs().length == 0 ? "" : jobCli.getArgs()[0];
+                if (cmd.equalsIgnoreCase("d") || cmd.equalsIgnoreCase("decode")) {
+                    if (jobCli.hasOption("d") || jobCli.hasOption("debug")) {
+                        throw new AndrolibException("SmaliDebugging has been removed in 2.1.0 onward.");
+                    }
+                    int paraCount = jobCli.getArgList().size();
+                    ApkDecoder decoder = new ApkDecoder();
+                    setupDecode(decoder, jobCli, (String) jobCli.getArgList().get(paraCount - 1));
+                    decoder.decode();
+                } else if (cmd.equalsIgnoreCase("b") || cmd.equalsIgnoreCase("build")) {
+                    cmdBuild(jobCli);
+                } else if (cmd.equalsIgnoreCase("if") || cmd.equalsIgnoreCase("install-framework")) {
+                    cmdInstallFramework(jobCli);
+                } else {
+                    throw new AndrolibException("Unknown command: " + cmd);
+                }
+            }
+        }).run();
     }
 
     private static void cmdBuild(CommandLine cli) throws BrutException {
@@ -211,9 +324,18 @@ public class Main {
         if (cli.hasOption("c") || cli.hasOption("copy-original")) {
             apkOptions.copyOriginalFiles = true;
         }
+        if (cli.hasOption("single-pass")) {
+            apkOptions.singlePass = true;
+        }
+        if (cli.hasOption("incremental-smali")) {
+            apkOptions.incrementalSmali = true;
+        }
         if (cli.hasOption("p") || cli.hasOption("frame-path")) {
             apkOptions.frameworkFolderLocation = cli.getOptionValue("p");
         }
+        if (cli.hasOption("j") || cli.hasOption("jobs")) {
+            apkOptions.jobs = Integer.parseInt(cli.getOptionValue("j"));
+        }
         if (cli.hasOption("o") || cli.hasOption("output")) {
             outFile = new File(cli.getOptionValue("o"));
         } else {
@@ -285,6 +407,18 @@ public class Main {
                 .withArgName("API")
                 .create();
 
+        Option smaliCacheOption = OptionBuilder.withLongOpt("smali-cache")
+                .withDescription("Reuses the smali of dex files decoded before, kept in <dir>.")
+                .hasArg(true)
+                .withArgName("dir")
+                .create();
+
+        Option jobsOption = OptionBuilder.withLongOpt("jobs")
+                .withDescription("Uses up to <n> threads to process independent parts of the apk.")
+                .hasArg(true)
+                .withArgName("n")
+                .create("j");
+
         Option debugBuiOption = OptionBuilder.withLongOpt("debug")
                 .withDescription("Sets android:debuggable to \"true\" in the APK's compiled manifest")
                 .create("d");
@@ -336,6 +470,14 @@ public class Main {
                 .withDescription("Copies original AndroidManifest.xml and META-INF. See project page for more info.")
                 .create("c");
 
+        Option singlePassOption = OptionBuilder.withLongOpt("single-pass")
+                .withDescription("Writes the apk in one pass, copying aapt's output without recompressing it.")
+                .create();
+
+        Option incrementalSmaliOption = OptionBuilder.withLongOpt("incremental-smali")
+                .withDescription("Keeps a dex per smali file in build/smali_cache and only assembles changed files.")
+                .create();
+
         Option tagOption = OptionBuilder.withLongOpt("tag")
                 .withDescription("Tag frameworks using <tag>.")
                 .hasArg(true)
@@ -354,6 +496,36 @@ public class Main {
                 .withArgName("dir")
                 .create("o");
 
+        Option summaryOption = OptionBuilder.withLongOpt("summary")
+                .withDescription("Writes the per-apk results to <file>. Default is <dir>/batch-summary.txt")
+                .hasArg(true)
+                .withArgName("file")
+                .create();
+
+        Option batchJobsOption = OptionBuilder.withLongOpt("jobs")
+                .withDescription("Decodes up to <n> apks at once. Default is the number of processors.")
+                .hasArg(true)
+                .withArgName("n")
+                .create("j");
+
+        Option outputBatchOption = OptionBuilder.withLongOpt("output")
+                .withDescription("The folder the apks are decoded into. Default is the current folder")
+                .hasArg(true)
+                .withArgName("dir")
+                .create("o");
+
+        Option portOption = OptionBuilder.withLongOpt("port")
+                .withDescription("Listens on 127.0.0.1:<port>. Default is " + Daemon.DEFAULT_PORT)
+                .hasArg(true)
+                .withArgName("port")
+                .create();
+
+        Option daemonJobsOption = OptionBuilder.withLongOpt("jobs")
+                .withDescription("Runs up to <n> jobs at once. Default is the number of processors.")
+                .hasArg(true)
+                .withArgName("n")
+                .create("j");
+
         Option quietOption = OptionBuilder.withLongOpt("quiet")
                 .create("q");
 
@@ -367,10 +539,15 @@ public class Main {
             DecodeOptions.addOption(keepResOption);
             DecodeOptions.addOption(analysisOption);
             DecodeOptions.addOption(apiLevelOption);
+            DecodeOptions.addOption(jobsOption);
+            DecodeOptions.addOption(smaliCacheOption);
 
             BuildOptions.addOption(debugBuiOption);
             BuildOptions.addOption(aaptOption);
             BuildOptions.addOption(originalOption);
+            BuildOptions.addOption(singlePassOption);
+            BuildOptions.addOption(incrementalSmaliOption);
+            BuildOptions.addOption(jobsOption);
         }
 
         // add global options
@@ -394,6 +571,15 @@ public class Main {
         frameOptions.addOption(tagOption);
         frameOptions.addOption(frameIfDirOption);
 
+        // add batch decode options, next to the decode ones
+        batchOptions.addOption(outputBatchOption);
+        batchOptions.addOption(batchJobsOption);
+        batchOptions.addOption(summaryOption);
+
+        // add daemon options
+        daemonOptions.addOption(portOption);
+        daemonOptions.addOption(daemonJobsOption);
+
         // add all, loop existing cats then manually add advance
         for (Object op : normalOptions.getOptions()) {
             allOptions.addOption((Option)op);
@@ -414,6 +600,12 @@ public class Main {
         allOptions.addOption(debugBuiOption);
         allOptions.addOption(aaptOption);
         allOptions.addOption(originalOption);
+        allOptions.addOption(singlePassOption);
+        allOptions.addOption(incrementalSmaliOption);
+        allOptions.addOption(jobsOption);
+        allOptions.addOption(smaliCacheOption);
+        allOptions.addOption(summaryOption);
+        allOptions.addOption(portOption);
         allOptions.addOption(verboseOption);
         allOptions.addOption(quietOption);
     }
@@ -451,6 +643,13 @@ public class Main {
         formatter.printHelp("apktool " + verbosityHelp() + "if|install-framework [options] <framework.apk>", frameOptions);
         formatter.printHelp("apktool " + verbosityHelp() + "d[ecode] [options] <file_apk>", DecodeOptions);
         formatter.printHelp("apktool " + verbosityHelp() + "b[uild] [options] <app_path>", BuildOptions);
+        formatter.printHelp("apktool " + verbosityHelp() + "bd|batch-decode [options] <apk_dir|list_file>",
+                "Decodes every apk in a folder or list file. Takes the decode options, and:", batchOptions, null);
+        if (isAdvanceMode()) {
+            formatter.printHelp("apktool " + verbosityHelp() + "daemon [options]",
+                    "Serves d, b and if commands sent as single lines over a loopback socket. "
+                    + "Each line starts with the token from " + Daemon.TOKEN_FILENAME + " in the apktool folder.", daemonOptions, null);
+        }
         if (isAdvanceMode()) {
             formatter.printHelp("apktool " + verbosityHelp() + "publicize-resources <file_path>",
                     "Make all framework resources public.", emptyOptions, null);
@@ -534,6 +733,8 @@ public class Main {
     private final static Options DecodeOptions;
     private final static Options BuildOptions;
     private final static Options frameOptions;
+    private final static Options batchOptions;
+    private final static Options daemonOptions;
     private final static Options allOptions;
     private final static Options emptyOptions;
 
@@ -543,6 +744,8 @@ public class Main {
         BuildOptions = new Options();
         DecodeOptions = new Options();
         frameOptions = new Options();
+        batchOptions = new Options();
+        daemonOptions = new Options();
         allOptions = new Options();
         emptyOptions = new Options();
     }
@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.apktool;
+
+import brut.androlib.ApkDecoder;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BatchDecoderTest {
+
+    @BeforeClass
+    public static void beforeClass() throws BrutException {
+        sTmpDir = OS.createTempDirectory();
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void outNamesAreUniqueTest() {
+        Set<String> outNames = new HashSet<String>();
+        assertEquals("app", BatchDecoder.getOutName(new File("a/app.apk"), outNames));
+        assertEquals("app-2", BatchDecoder.getOutName(new File("b/app.apk"), outNames));
+        assertEquals("app.zip.out", BatchDecoder.getOutName(new File("app.zip"), outNames));
+        assertEquals("other", BatchDecoder.getOutName(new File("other.apk"), outNames));
+    }
+
+    @Test
+    public void listsApksOfDirectoryTest() throws IOException {
+        File dir = new File(sTmpDir, "apks");
+        new File(dir, "sub.apk").mkdirs();
+        for (String name : new String[] { "b.apk", "a.apk", "C.APK", "notes.txt" }) {
+            new File(dir, name).createNewFile();
+        }
+
+        List<File> expected = Arrays.asList(new File(dir, "C.APK"), new File(dir, "a.apk"), new File(dir, "b.apk"));
+        assertEquals(expected, BatchDecoder.listApkFiles(dir));
+    }
+
+    @Test
+    public void listsApksOfListFileTest() throws IOException {
+        File list = new File(sTmpDir, "apks.txt");
+        Files.write(list.toPath(), Arrays.asList("# comment", "", "  /tmp/one.apk  ", "relative/two.apk"),
+                StandardCharsets.UTF_8);
+
+        assertEquals(Arrays.asList(new File("/tmp/one.apk"), new File("relative/two.apk")),
+                BatchDecoder.listApkFiles(list));
+    }
+
+    @Test
+    public void decodesEachApkSeriallyTest() throws BrutException {
+        final List<Integer> jobs = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchDecoder batch = new BatchDecoder(new BatchDecoder.DecoderFactory() {
+            @Override
+            public ApkDecoder newDecoder() {
+                ApkDecoder decoder = new ApkDecoder() {
+                    private int mJobs;
+
+                    @Override
+                    public void setJobs(int count) {
+                        super.setJobs(count);
+                        mJobs = count;
+                    }
+
+                    @Override
+                    public void decode() {
+                        jobs.add(mJobs);
+                    }
+                };
+                decoder.setJobs(4);
+                return decoder;
+            }
+        }, new File(sTmpDir, "out"), 4);
+
+        List<BatchDecoder.Result> results = batch.decode(Arrays.asList(new File("a.apk"), new File("b.apk")));
+        assertEquals(2, results.size());
+        for (BatchDecoder.Result result : results) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(Arrays.asList(1, 1), jobs);
+    }
+
+    private static File sTmpDir;
+}
@@ -0,0 +1,180 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.apktool;
+
+import brut.androlib.res.FrameworkPackageCache;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DaemonTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        sTmpDir = OS.createTempDirectory();
+        sCacheSize = FrameworkPackageCache.getInstance().getMaxSize();
+        sTokenFile = new File(sTmpDir, "home/" + Daemon.TOKEN_FILENAME);
+
+        sDaemon = new Daemon(0, 2, sTokenFile, new Daemon.Handler() {
+            @Override
+            public void handle(String[] args) throws Exception {
+                if (args[0].equals("fail")) {
+                    throw new IOException("failed\non purpose");
+                }
+                sHandled.add(Arrays.asList(args));
+            }
+        });
+        sThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    sDaemon.run();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        sThread.start();
+
+        for (int i = 0; i < 500 && ! sTokenFile.isFile(); i++) {
+            Thread.sleep(10);
+        }
+        sToken = new String(Files.readAllBytes(sTokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        if (sThread.isAlive()) {
+            send(sToken + " shutdown");
+            sThread.join(10000);
+        }
+        FrameworkPackageCache.getInstance().setMaxSize(sCacheSize);
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void splitsArgsTest() {
+        assertEquals(Arrays.asList("d", "-f", "-o", "out dir", "app.apk"),
+                Daemon.splitArgs("  d -f\t-o \"out dir\"   app.apk "));
+        assertEquals(Arrays.asList("b", "", "c"), Daemon.splitArgs("b \"\" c"));
+        assertEquals(Arrays.asList("x=1 2"), Daemon.splitArgs("x=\"1 2\""));
+        assertEquals(Collections.emptyList(), Daemon.splitArgs("   "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnterminatedQuoteTest() {
+        Daemon.splitArgs("d \"app.apk");
+    }
+
+    @Test
+    public void tokenFileIsPrivateTest() throws IOException {
+        assertEquals(32, sToken.length());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(sTokenFile.toPath()));
+        }
+    }
+
+    @Test
+    public void rejectsRequestsWithoutTokenTest() throws IOException {
+        int handled = sHandled.size();
+        assertEquals("ERROR Invalid token", send("ping"));
+        assertEquals("ERROR Invalid token", send("d app.apk"));
+        assertEquals("ERROR Invalid token", send(""));
+        assertEquals("ERROR Invalid token", send(sToken.substring(1) + " ping"));
+        assertEquals("ERROR Invalid token", send(sToken + "0 ping"));
+        assertEquals("ERROR Invalid token", send("shutdown"));
+        assertEquals(handled, sHandled.size());
+        assertTrue(sThread.isAlive());
+    }
+
+    @Test
+    public void servesRequestsWithTokenTest() throws IOException {
+        assertEquals("OK", send(sToken + " ping"));
+        assertTrue(send(sToken + " stats").startsWith("OK "));
+        assertEquals("ERROR Empty request", send(sToken));
+        assertEquals("ERROR Unterminated quote", send(sToken + " d \"app.apk"));
+        assertEquals("ERROR failed on purpose", send(sToken + " fail"));
+
+        assertTrue(send(sToken + " d -o \"out dir\" app.apk").matches("OK \\d+"));
+        assertTrue(sHandled.contains(Arrays.asList("d", "-o", "out dir", "app.apk")));
+    }
+
+    @Test
+    public void shutsDownWithTokenTest() throws Exception {
+        final File tokenFile = new File(sTmpDir, "other/" + Daemon.TOKEN_FILENAME);
+        final Daemon daemon = new Daemon(0, 1, tokenFile, null);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.run();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        thread.start();
+        for (int i = 0; i < 500 && ! tokenFile.isFile(); i++) {
+            Thread.sleep(10);
+        }
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        assertFalse(sToken.equals(token));
+
+        assertEquals("ERROR Invalid token", send(daemon.getLocalPort(), sToken + " shutdown"));
+        assertTrue(thread.isAlive());
+        assertEquals("OK", send(daemon.getLocalPort(), token + " shutdown"));
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertFalse(tokenFile.exists());
+    }
+
+    private static String send(String request) throws IOException {
+        return send(sDaemon.getLocalPort(), request);
+    }
+
+    private static String send(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(request + "\n");
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+        }
+    }
+
+    private static File sTmpDir;
+    private static File sTokenFile;
+    private static String sToken;
+    private static int sCacheSize;
+    private static Daemon sDaemon;
+    private static Thread sThread;
+    private final static List<List<String>> sHandled = Collections.synchronizedList(
+            new ArrayList<List<String>>());
+}
@@ -30,14 +30,12 @@ import brut.common.BrutException;
 import brut.directory.*;
 import brut.util.BrutIO;
 import brut.util.OS;
+import brut.util.TaskRunner;
 import java.io.*;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -47,6 +45,8 @@ import org.apache.commons.io.FilenameUtils;
 public class Androlib {
     private final AndrolibResources mAndRes = new AndrolibResources();
     protected final ResUnknownFiles mResUnknownFiles = new ResUnknownFiles();
+    private BuildManifest mBuildManifest;
+    private File mBuildManifestDir;
     public ApkOptions apkOptions;
 
     public Androlib(ApkOptions apkOptions) {
@@ -81,6 +81,42 @@ public class Androlib {
 
     public void decodeSourcesSmali(File apkFile, File outDir, String filename, boolean bakdeb, int api)
             throws AndrolibException {
+        decodeSourcesSmali(apkFile, outDir, filename, bakdeb, api, -1);
+    }
+
+    /**
+     * Baksmals several dex files at once. The jobs are a budget shared by all of them: up to
+     * that many dex files are disassembled concurrently and the threads are split between them.
+     */
+    public void decodeSourcesSmali(final File apkFile, final File outDir, List<String> filenames,
+                                   final boolean bakdeb, final int api, int jobs)
+            throws AndrolibException {
+        if (filenames.isEmpty()) {
+            return;
+        }
+        int concurrent = Math.min(filenames.size(), Math.max(1, jobs));
+        TaskRunner runner = new TaskRunner(concurrent, "apktool-baksmali");
+        for (int i = 0; i < filenames.size(); i++) {
+            final String filename = filenames.get(i);
+            final int dexJobs = Math.max(1, jobs / concurrent) + (i < jobs % concurrent ? 1 : 0);
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    decodeSourcesSmali(apkFile, outDir, filename, bakdeb, api, dexJobs);
+                }
+            });
+        }
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
+    private void decodeSourcesSmali(File apkFile, File outDir, String filename, boolean bakdeb, int api, int jobs)
+            throws AndrolibException {
         try {
             File smaliDir;
             if (filename.equalsIgnoreCase("classes.dex")) {
@@ -91,7 +127,8 @@ public class Androlib {
             OS.rmdir(smaliDir);
             smaliDir.mkdirs();
             LOGGER.info("Baksmaling " + filename + "...");
-            SmaliDecoder.decode(apkFile, smaliDir, filename, bakdeb, api);
+            SmaliDecoder.decode(apkFile, smaliDir, filename, bakdeb, api, jobs,
+                    apkOptions.smaliCacheDir == null ? null : new File(apkOptions.smaliCacheDir));
         } catch (BrutException ex) {
             throw new AndrolibException(ex);
         }
@@ -283,6 +320,7 @@ public class Androlib {
         buildLib(appDir);
         buildLibs(appDir);
         buildCopyOriginalFiles(appDir);
+        getBuildManifest(appDir).save();
         buildApk(appDir, outFile);
 
         // we must go after the Apk is built, and copy the files in via Zip
@@ -302,16 +340,16 @@ public class Androlib {
         try {
             // loop through any smali_ directories for multi-dex apks
             Map<String, Directory> dirs = appDir.getDirectory().getDirs();
+            List<String> smaliDirs = new ArrayList<String>();
             for (Map.Entry<String, Directory> directory : dirs.entrySet()) {
                 String name = directory.getKey();
                 if (name.startsWith("smali_")) {
-                    String filename = name.substring(name.indexOf("_") + 1) + ".dex";
-
-                    if (!buildSourcesRaw(appDir, filename) && !buildSourcesSmali(appDir, name, filename)) {
-                        LOGGER.warning("Could not find sources");
+                    if (!buildSourcesRaw(appDir, getNonDefaultDexName(name))) {
+                        smaliDirs.add(name);
                     }
                 }
             }
+            buildNonDefaultSourcesSmali(appDir, smaliDirs);
 
             // loop through any classes#.dex files for multi-dex apks
             File[] dexFiles = appDir.listFiles();
@@ -329,6 +367,49 @@ public class Androlib {
         }
     }
 
+    /**
+     * Each smali_ directory produces its own dex, so with more than one job they are built
+     * concurrently. Like baksmaling, the jobs are a budget split between the directories.
+     */
+    private void buildNonDefaultSourcesSmali(final File appDir, List<String> folders)
+            throws AndrolibException {
+        int jobs = apkOptions.jobs;
+        if (jobs <= 1 || folders.size() <= 1) {
+            for (String folder : folders) {
+                if (!buildSourcesSmali(appDir, folder, getNonDefaultDexName(folder), jobs)) {
+                    LOGGER.warning("Could not find sources");
+                }
+            }
+            return;
+        }
+
+        int concurrent = Math.min(folders.size(), jobs);
+        TaskRunner runner = new TaskRunner(concurrent, "apktool-smali");
+        for (int i = 0; i < folders.size(); i++) {
+            final String folder = folders.get(i);
+            final int dexJobs = jobs / concurrent + (i < jobs % concurrent ? 1 : 0);
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    if (!buildSourcesSmali(appDir, folder, getNonDefaultDexName(folder), dexJobs)) {
+                        LOGGER.warning("Could not find sources");
+                    }
+                }
+            });
+        }
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
+    private String getNonDefaultDexName(String folder) {
+        return folder.substring(folder.indexOf("_") + 1) + ".dex";
+    }
+
     public boolean buildSourcesRaw(File appDir, String filename)
             throws AndrolibException {
         File working = new File(appDir, filename);
@@ -336,10 +417,11 @@ public class Androlib {
             return false;
         }
         File stored = new File(appDir, APK_DIRNAME + "/" + filename);
-        if (apkOptions.forceBuildAll || isModified(working, stored)) {
+        if (apkOptions.forceBuildAll || isModified(appDir, filename, working, stored)) {
             LOGGER.info("Copying " + appDir.toString() + " " + filename + " file...");
             try {
                 BrutIO.copyAndClose(new FileInputStream(working), new FileOutputStream(stored));
+                getBuildManifest(appDir).update(filename);
                 return true;
             } catch (IOException ex) {
                 throw new AndrolibException(ex);
@@ -350,6 +432,11 @@ public class Androlib {
 
     public boolean buildSourcesSmali(File appDir, String folder, String filename)
             throws AndrolibException {
+        return buildSourcesSmali(appDir, folder, filename, apkOptions.jobs);
+    }
+
+    private boolean buildSourcesSmali(File appDir, String folder, String filename, int jobs)
+            throws AndrolibException {
         ExtFile smaliDir = new ExtFile(appDir, folder);
         if (!smaliDir.exists()) {
             return false;
@@ -358,10 +445,27 @@ public class Androlib {
         if (! apkOptions.forceBuildAll) {
             LOGGER.info("Checking whether sources has changed...");
         }
-        if (apkOptions.forceBuildAll || isModified(smaliDir, dex)) {
+        if (apkOptions.forceBuildAll || isModified(appDir, folder, smaliDir, dex)) {
             LOGGER.info("Smaling " + folder + " folder into " + filename +"...");
+            long start = System.currentTimeMillis();
             dex.delete();
-            SmaliBuilder.build(smaliDir, dex);
+
+            if (apkOptions.incrementalSmali) {
+                // smali files keep their assembled dex fragment, so only the changed ones are parsed again
+                File cacheDir = new File(appDir, SMALI_CACHE_DIRNAME + "/" + folder);
+                if (apkOptions.forceBuildAll) {
+                    try {
+                        OS.rmdir(cacheDir);
+                    } catch (BrutException ex) {
+                        throw new AndrolibException(ex);
+                    }
+                }
+                SmaliBuilder.build(smaliDir, dex, jobs, cacheDir);
+            } else {
+                SmaliBuilder.build(smaliDir, dex, jobs);
+            }
+            getBuildManifest(appDir).update(folder);
+            LOGGER.info(String.format("Smaled %s in %d ms", filename, System.currentTimeMillis() - start));
         }
         return true;
     }
@@ -384,10 +488,12 @@ public class Androlib {
             if (! apkOptions.forceBuildAll) {
                 LOGGER.info("Checking whether resources has changed...");
             }
-            if (apkOptions.forceBuildAll || isModified(newFiles(APK_RESOURCES_FILENAMES, appDir),
-                    newFiles(APK_RESOURCES_FILENAMES, apkDir))) {
+            if (apkOptions.forceBuildAll || isModified(appDir, "raw-resources",
+                    newFiles(APK_RESOURCES_FILENAMES, appDir), newFiles(APK_RESOURCES_FILENAMES, apkDir))) {
                 LOGGER.info("Copying raw resources...");
                 appDir.getDirectory().copyToDir(apkDir, APK_RESOURCES_FILENAMES);
+                new File(appDir, APK_RESOURCES_APK).delete();
+                getBuildManifest(appDir).update("raw-resources");
             }
             return true;
         } catch (DirectoryException ex) {
@@ -405,15 +511,18 @@ public class Androlib {
                 LOGGER.info("Checking whether resources has changed...");
             }
             File apkDir = new File(appDir, APK_DIRNAME);
-            if (apkOptions.forceBuildAll || isModified(newFiles(APP_RESOURCES_FILENAMES, appDir),
-                    newFiles(APK_RESOURCES_FILENAMES, apkDir))) {
+            File resourcesApk = new File(appDir, APK_RESOURCES_APK);
+            File[] stored = apkOptions.singlePass ? new File[] { resourcesApk }
+                    : newFiles(APK_RESOURCES_FILENAMES, apkDir);
+            if (apkOptions.forceBuildAll || isModified(appDir, "resources",
+                    newFiles(APP_RESOURCES_FILENAMES, appDir), stored)) {
                 LOGGER.info("Building resources...");
 
                 if (apkOptions.debugMode) {
                     ResXmlPatcher.removeApplicationDebugTag(new File(appDir, "AndroidManifest.xml"));
                 }
 
-                File apkFile = File.createTempFile("APKTOOL", null);
+                File apkFile = apkOptions.singlePass ? resourcesApk : File.createTempFile("APKTOOL", null);
                 apkFile.delete();
 
                 File ninePatch = new File(appDir, "9patch");
@@ -424,13 +533,19 @@ public class Androlib {
                         "AndroidManifest.xml"), new File(appDir, "res"),
                         ninePatch, null, parseUsesFramework(usesFramework));
 
-                Directory tmpDir = new ExtFile(apkFile).getDirectory();
-                tmpDir.copyToDir(apkDir,
-                        tmpDir.containsDir("res") ? APK_RESOURCES_FILENAMES
-                                : APK_RESOURCES_WITHOUT_RES_FILENAMES);
-
-                // delete tmpDir
-                apkFile.delete();
+                if (apkOptions.singlePass) {
+                    // buildApk copies aapt's entries as they are, drop what an earlier build extracted
+                    removeFiles(apkDir, APK_RESOURCES_FILENAMES);
+                } else {
+                    Directory tmpDir = new ExtFile(apkFile).getDirectory();
+                    tmpDir.copyToDir(apkDir,
+                            tmpDir.containsDir("res") ? APK_RESOURCES_FILENAMES
+                                    : APK_RESOURCES_WITHOUT_RES_FILENAMES);
+
+                    // delete tmpDir
+                    apkFile.delete();
+                }
+                getBuildManifest(appDir).update("resources");
             }
             return true;
         } catch (IOException | BrutException ex) {
@@ -444,6 +559,7 @@ public class Androlib {
             File apkDir = new File(appDir, APK_DIRNAME);
             LOGGER.info("Copying raw AndroidManifest.xml...");
             appDir.getDirectory().copyToDir(apkDir, APK_MANIFEST_FILENAMES);
+            new File(appDir, APK_RESOURCES_APK).delete();
             return true;
         } catch (DirectoryException ex) {
             throw new AndrolibException(ex);
@@ -461,12 +577,15 @@ public class Androlib {
             }
 
             File apkDir = new File(appDir, APK_DIRNAME);
+            File resourcesApk = new File(appDir, APK_RESOURCES_APK);
+            File[] stored = apkOptions.singlePass ? new File[] { resourcesApk }
+                    : newFiles(APK_MANIFEST_FILENAMES, apkDir);
 
-            if (apkOptions.forceBuildAll || isModified(newFiles(APK_MANIFEST_FILENAMES, appDir),
-                    newFiles(APK_MANIFEST_FILENAMES, apkDir))) {
+            if (apkOptions.forceBuildAll || isModified(appDir, "manifest",
+                    newFiles(APK_MANIFEST_FILENAMES, appDir), stored)) {
                 LOGGER.info("Building AndroidManifest.xml...");
 
-                File apkFile = File.createTempFile("APKTOOL", null);
+                File apkFile = apkOptions.singlePass ? resourcesApk : File.createTempFile("APKTOOL", null);
                 apkFile.delete();
 
                 File ninePatch = new File(appDir, "9patch");
@@ -478,8 +597,13 @@ public class Androlib {
                         "AndroidManifest.xml"), null, ninePatch, null,
                         parseUsesFramework(usesFramework));
 
-                Directory tmpDir = new ExtFile(apkFile).getDirectory();
-                tmpDir.copyToDir(apkDir, APK_MANIFEST_FILENAMES);
+                if (apkOptions.singlePass) {
+                    removeFiles(apkDir, APK_MANIFEST_FILENAMES);
+                } else {
+                    Directory tmpDir = new ExtFile(apkFile).getDirectory();
+                    tmpDir.copyToDir(apkDir, APK_MANIFEST_FILENAMES);
+                }
+                getBuildManifest(appDir).update("manifest");
             }
             return true;
         } catch (IOException | DirectoryException ex) {
@@ -506,11 +630,12 @@ public class Androlib {
         }
 
         File stored = new File(appDir, APK_DIRNAME + "/" + folder);
-        if (apkOptions.forceBuildAll || isModified(working, stored)) {
+        if (apkOptions.forceBuildAll || isModified(appDir, folder, working, stored)) {
             LOGGER.info("Copying libs... (/" + folder + ")");
             try {
                 OS.rmdir(stored);
                 OS.cpdir(working, stored);
+                getBuildManifest(appDir).update(folder);
             } catch (BrutException ex) {
                 throw new AndrolibException(ex);
             }
@@ -552,13 +677,11 @@ public class Androlib {
                 throw new AndrolibException("Unable to rename temporary file");
             }
 
-            try (
-                    ZipFile inputFile = new ZipFile(tempFile);
-                    ZipOutputStream actualOutput = new ZipOutputStream(new FileOutputStream(outFile))
-            ) {
-                copyExistingFiles(inputFile, actualOutput);
-                copyUnknownFiles(appDir, actualOutput, files);
-            } catch (IOException ex) {
+            // existing entries are copied as they are, only the unknown files get compressed
+            try (ZipWriter zip = new ZipWriter(outFile)) {
+                zip.copyEntries(tempFile, null);
+                copyUnknownFiles(appDir, zip, files);
+            } catch (IOException | DirectoryException ex) {
                 throw new AndrolibException(ex);
             }
 
@@ -567,27 +690,8 @@ public class Androlib {
         }
     }
 
-    private void copyExistingFiles(ZipFile inputFile, ZipOutputStream outputFile) throws IOException {
-        // First, copy the contents from the existing outFile:
-        Enumeration<? extends ZipEntry> entries = inputFile.entries();
-        while (entries.hasMoreElements()) {
-            ZipEntry entry = new ZipEntry(entries.nextElement());
-
-            // We can't reuse the compressed size because it depends on compression sizes.
-            entry.setCompressedSize(-1);
-            outputFile.putNextEntry(entry);
-
-            // No need to create directory entries in the final apk
-            if (! entry.isDirectory()) {
-                BrutIO.copy(inputFile, outputFile, entry);
-            }
-
-            outputFile.closeEntry();
-        }
-    }
-
-    private void copyUnknownFiles(File appDir, ZipOutputStream outputFile, Map<String, String> files)
-            throws IOException {
+    private void copyUnknownFiles(File appDir, ZipWriter outputFile, Map<String, String> files)
+            throws DirectoryException {
         File unknownFileDir = new File(appDir, UNK_DIRNAME);
 
         // loop through unknown files
@@ -597,23 +701,10 @@ public class Androlib {
                 continue;
             }
 
-            ZipEntry newEntry = new ZipEntry(unknownFileInfo.getKey());
             int method = Integer.parseInt(unknownFileInfo.getValue());
             LOGGER.fine(String.format("Copying unknown file %s with method %d", unknownFileInfo.getKey(), method));
-            if (method == ZipEntry.STORED) {
-                newEntry.setMethod(ZipEntry.STORED);
-                newEntry.setSize(inputFile.length());
-                newEntry.setCompressedSize(-1);
-                BufferedInputStream unknownFile = new BufferedInputStream(new FileInputStream(inputFile));
-                CRC32 crc = BrutIO.calculateCrc(unknownFile);
-                newEntry.setCrc(crc.getValue());
-            } else {
-                newEntry.setMethod(ZipEntry.DEFLATED);
-            }
-            outputFile.putNextEntry(newEntry);
-
-            BrutIO.copy(inputFile, outputFile);
-            outputFile.closeEntry();
+            outputFile.addFile(unknownFileInfo.getKey(), inputFile,
+                    method == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
         }
     }
 
@@ -631,9 +722,81 @@ public class Androlib {
         if (!assetDir.exists()) {
             assetDir = null;
         }
+        if (apkOptions.singlePass) {
+            buildApkSinglePass(appDir, outApk, assetDir);
+            return;
+        }
         mAndRes.aaptPackage(outApk, null, null, new File(appDir, APK_DIRNAME), assetDir, null);
     }
 
+    /**
+     * Writes the apk in one pass instead of packaging build/apk with aapt. Entries of the
+     * apk aapt built the resources into are copied without recompressing them; the other
+     * files are compressed following aapt's rules.
+     */
+    private void buildApkSinglePass(File appDir, File outApk, File assetDir) throws AndrolibException {
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        listApkFiles(new File(appDir, APK_DIRNAME), "", files);
+        if (assetDir != null) {
+            listApkFiles(assetDir, "assets/", files);
+        }
+
+        File resourcesApk = new File(appDir, APK_RESOURCES_APK);
+        try (ZipWriter zip = new ZipWriter(outApk)) {
+            // files in build/apk, like the original manifest, take precedence over aapt's
+            if (resourcesApk.exists()) {
+                zip.copyEntries(resourcesApk, files.keySet());
+            }
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                String name = file.getKey();
+                zip.addFile(name, file.getValue(), isCompressible(name) ? ZipEntry.DEFLATED : ZipEntry.STORED);
+            }
+        } catch (IOException | DirectoryException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
+    private void listApkFiles(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName();
+            // same files aapt ignores by default
+            if (name.startsWith(".") || name.endsWith("~") || name.equalsIgnoreCase("CVS")
+                    || name.equalsIgnoreCase("thumbs.db") || name.equalsIgnoreCase("picasa.ini")
+                    || name.toLowerCase().endsWith(".scc")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                if (! name.startsWith("_")) {
+                    listApkFiles(child, prefix + name + "/", files);
+                }
+            } else if (! files.containsKey(prefix + name)) {
+                files.put(prefix + name, child);
+            }
+        }
+    }
+
+    private boolean isCompressible(String name) {
+        if (NO_COMPRESS_PATTERN.matcher(name.toLowerCase()).find()) {
+            return false;
+        }
+        if (!apkOptions.resourcesAreCompressed && name.endsWith("arsc")) {
+            return false;
+        }
+        if (apkOptions.doNotCompress != null) {
+            for (String ext : apkOptions.doNotCompress) {
+                if (name.endsWith(ext)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     public void publicizeResources(File arscFile) throws AndrolibException {
         mAndRes.publicizeResources(arscFile);
     }
@@ -676,17 +839,39 @@ public class Androlib {
         return files;
     }
 
-    private boolean isModified(File working, File stored) {
-        return ! stored.exists() || BrutIO.recursiveModifiedTime(working) > BrutIO .recursiveModifiedTime(stored);
+    private boolean isModified(File appDir, String stage, File working, File stored)
+            throws AndrolibException {
+        return isModified(appDir, stage, new File[] { working }, new File[] { stored });
     }
 
-    private boolean isModified(File[] working, File[] stored) {
+    private boolean isModified(File appDir, String stage, File[] working, File[] stored)
+            throws AndrolibException {
+        boolean modified = getBuildManifest(appDir).isModified(stage, working);
         for (int i = 0; i < stored.length; i++) {
             if (!stored[i].exists()) {
                 return true;
             }
         }
-        return BrutIO.recursiveModifiedTime(working) > BrutIO.recursiveModifiedTime(stored);
+        return modified;
+    }
+
+    private synchronized BuildManifest getBuildManifest(File appDir) {
+        if (mBuildManifest == null || ! mBuildManifestDir.equals(appDir)) {
+            mBuildManifest = new BuildManifest(appDir, apkOptions.jobs);
+            mBuildManifestDir = appDir;
+        }
+        return mBuildManifest;
+    }
+
+    private void removeFiles(File dir, String[] names) throws BrutException {
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (file.isDirectory()) {
+                OS.rmdir(file);
+            } else {
+                file.delete();
+            }
+        }
     }
 
     private File[] newFiles(String[] names, File dir) {
@@ -701,6 +886,8 @@ public class Androlib {
 
     private final static String SMALI_DIRNAME = "smali";
     private final static String APK_DIRNAME = "build/apk";
+    private final static String APK_RESOURCES_APK = "build/resources.apk";
+    private final static String SMALI_CACHE_DIRNAME = "build/smali_cache";
     private final static String UNK_DIRNAME = "unknown";
     private final static String[] APK_RESOURCES_FILENAMES = new String[] {
             "resources.arsc", "AndroidManifest.xml", "res" };
@@ -23,7 +23,7 @@ import brut.androlib.meta.MetaInfo;
 import brut.androlib.meta.PackageInfo;
 import brut.androlib.meta.UsesFramework;
 import brut.androlib.meta.VersionInfo;
-import brut.androlib.res.AndrolibResources;
+import brut.androlib.res.FrameworkPackageCache;
 import brut.androlib.res.data.ResPackage;
 import brut.androlib.res.data.ResTable;
 import brut.androlib.res.util.ExtFile;
@@ -31,6 +31,7 @@ import brut.androlib.res.xml.ResXmlPatcher;
 import brut.common.BrutException;
 import brut.directory.DirectoryException;
 import brut.util.OS;
+import brut.util.TaskRunner;
 import com.google.common.base.Strings;
 
 import java.io.File;
@@ -74,7 +75,6 @@ public class ApkDecoder {
 
     public void decode() throws AndrolibException, IOException, DirectoryException {
         File outDir = getOutDir();
-        AndrolibResources.sKeepBroken = mKeepBrokenResources;
 
         if (!mForceDelete && outDir.exists()) {
             throw new OutDirExistsException();
@@ -93,72 +93,21 @@ public class ApkDecoder {
 
         LOGGER.info("Using Apktool " + Androlib.getVersion() + " on " + mApkFile.getName());
 
-        if (hasResources()) {
-            switch (mDecodeResources) {
-                case DECODE_RESOURCES_NONE:
-                    mAndrolib.decodeResourcesRaw(mApkFile, outDir);
-                    break;
-                case DECODE_RESOURCES_FULL:
-                    setTargetSdkVersion();
-                    setAnalysisMode(mAnalysisMode, true);
-
-                    if (hasManifest()) {
-                        mAndrolib.decodeManifestWithResources(mApkFile, outDir, getResTable());
-                    }
-                    mAndrolib.decodeResourcesFull(mApkFile, outDir, getResTable());
-                    break;
-            }
+        loadResourceTable();
+        if (mAndrolib.apkOptions.jobs > 1) {
+            decodeParallel(outDir);
         } else {
-            // if there's no resources.asrc, decode the manifest without looking
-            // up attribute references
-            if (hasManifest()) {
-                switch (mDecodeResources) {
-                    case DECODE_RESOURCES_NONE:
-                        mAndrolib.decodeManifestRaw(mApkFile, outDir);
-                        break;
-                    case DECODE_RESOURCES_FULL:
-                        mAndrolib.decodeManifestFull(mApkFile, outDir,
-                                getResTable());
-                        break;
-                }
-            }
-        }
-
-        if (hasSources()) {
-            switch (mDecodeSources) {
-                case DECODE_SOURCES_NONE:
-                    mAndrolib.decodeSourcesRaw(mApkFile, outDir, "classes.dex");
-                    break;
-                case DECODE_SOURCES_SMALI:
-                    mAndrolib.decodeSourcesSmali(mApkFile, outDir, "classes.dex", mBakDeb, mApi);
-                    break;
+            decodeResources(outDir);
+            for (String file : listDexFiles()) {
+                decodeDex(outDir, file, mApi);
             }
+            mAndrolib.decodeRawFiles(mApkFile, outDir);
+            mAndrolib.decodeUnknownFiles(mApkFile, outDir, mResTable);
+            mAndrolib.writeOriginalFiles(mApkFile, outDir);
         }
 
-        if (hasMultipleSources()) {
-            // foreach unknown dex file in root, lets disassemble it
-            Set<String> files = mApkFile.getDirectory().getFiles(true);
-            for (String file : files) {
-                if (file.endsWith(".dex")) {
-                    if (! file.equalsIgnoreCase("classes.dex")) {
-                        switch(mDecodeSources) {
-                            case DECODE_SOURCES_NONE:
-                                mAndrolib.decodeSourcesRaw(mApkFile, outDir, file);
-                                break;
-                            case DECODE_SOURCES_SMALI:
-                                mAndrolib.decodeSourcesSmali(mApkFile, outDir, file, mBakDeb, mApi);
-                                break;
-                        }
-                    }
-                }
-            }
-        }
-
-        mAndrolib.decodeRawFiles(mApkFile, outDir);
-        mAndrolib.decodeUnknownFiles(mApkFile, outDir, mResTable);
         mUncompressedFiles = new ArrayList<String>();
         mAndrolib.recordUncompressedFiles(mApkFile, mUncompressedFiles);
-        mAndrolib.writeOriginalFiles(mApkFile, outDir);
         writeMetaFile();
     }
 
@@ -212,13 +161,31 @@ public class ApkDecoder {
     }
 
     public void setKeepBrokenResources(boolean keepBrokenResources) {
-        mKeepBrokenResources = keepBrokenResources;
+        mAndrolib.apkOptions.keepBrokenResources = keepBrokenResources;
     }
 
     public void setFrameworkDir(String dir) {
         mAndrolib.apkOptions.frameworkFolderLocation = dir;
     }
 
+    public void setSmaliCacheDir(String dir) {
+        mAndrolib.apkOptions.smaliCacheDir = dir;
+    }
+
+    public void setJobs(int jobs) {
+        mAndrolib.apkOptions.jobs = jobs;
+    }
+
+    /**
+     * Keeps up to size decoded framework packages in memory for the whole process, so later
+     * decodes using the same frameworks don't load them again. Off (0) by default, as a
+     * single decode never hits it; batch decode and the daemon use
+     * {@link FrameworkPackageCache#SHARED_SIZE}.
+     */
+    public static void setFrameworkCacheSize(int size) {
+        FrameworkPackageCache.getInstance().setMaxSize(size);
+    }
+
     public ResTable getResTable() throws AndrolibException {
         if (mResTable == null) {
             boolean hasResources = hasResources();
@@ -279,6 +246,152 @@ public class ApkDecoder {
     public final static short DECODE_RESOURCES_NONE = 0x0100;
     public final static short DECODE_RESOURCES_FULL = 0x0101;
 
+    private void loadResourceTable() throws AndrolibException, IOException {
+        if (hasResources() && mDecodeResources == DECODE_RESOURCES_FULL) {
+            setTargetSdkVersion();
+            setAnalysisMode(mAnalysisMode, true);
+        }
+    }
+
+    private void decodeResources(File outDir) throws AndrolibException {
+        if (hasResources()) {
+            switch (mDecodeResources) {
+                case DECODE_RESOURCES_NONE:
+                    mAndrolib.decodeResourcesRaw(mApkFile, outDir);
+                    break;
+                case DECODE_RESOURCES_FULL:
+                    if (hasManifest()) {
+                        mAndrolib.decodeManifestWithResources(mApkFile, outDir, getResTable());
+                    }
+                    mAndrolib.decodeResourcesFull(mApkFile, outDir, getResTable());
+                    break;
+            }
+        } else {
+            // if there's no resources.asrc, decode the manifest without looking
+            // up attribute references
+            if (hasManifest()) {
+                switch (mDecodeResources) {
+                    case DECODE_RESOURCES_NONE:
+                        mAndrolib.decodeManifestRaw(mApkFile, outDir);
+                        break;
+                    case DECODE_RESOURCES_FULL:
+                        mAndrolib.decodeManifestFull(mApkFile, outDir,
+                                getResTable());
+                        break;
+                }
+            }
+        }
+    }
+
+    private List<String> listDexFiles() throws AndrolibException {
+        List<String> dexFiles = new ArrayList<String>();
+        if (hasSources()) {
+            dexFiles.add("classes.dex");
+        }
+
+        if (hasMultipleSources()) {
+            // foreach unknown dex file in root, lets disassemble it
+            try {
+                Set<String> files = mApkFile.getDirectory().getFiles(true);
+                for (String file : files) {
+                    if (file.endsWith(".dex")) {
+                        if (! file.equalsIgnoreCase("classes.dex")) {
+                            dexFiles.add(file);
+                        }
+                    }
+                }
+            } catch (DirectoryException ex) {
+                throw new AndrolibException(ex);
+            }
+        }
+        return dexFiles;
+    }
+
+    private void decodeDex(File outDir, String file, int api) throws AndrolibException {
+        switch (mDecodeSources) {
+            case DECODE_SOURCES_NONE:
+                mAndrolib.decodeSourcesRaw(mApkFile, outDir, file);
+                break;
+            case DECODE_SOURCES_SMALI:
+                mAndrolib.decodeSourcesSmali(mApkFile, outDir, file, mBakDeb, api);
+                break;
+        }
+    }
+
+    /**
+     * Resources, every dex file, raw files, unknown files and original files are written
+     * to disjoint parts of outDir, so they are decoded as separate tasks. The resource table
+     * (and the api level read from it) must already be loaded.
+     */
+    private void decodeParallel(final File outDir) throws AndrolibException {
+        final int api = mApi;
+        final ResTable resTable = mResTable;
+        final int jobs = mAndrolib.apkOptions.jobs;
+
+        // populate the lazily loaded listings of the apk, so the tasks only read them
+        try {
+            mApkFile.getDirectory().getFiles(true);
+        } catch (DirectoryException ex) {
+            throw new AndrolibException(ex);
+        }
+        final List<String> dexFiles = listDexFiles();
+
+        LOGGER.info("Decoding with " + jobs + " jobs...");
+        TaskRunner runner = new TaskRunner(jobs, "apktool-decode");
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                decodeResources(outDir);
+            }
+        });
+        if (mDecodeSources == DECODE_SOURCES_SMALI) {
+            // baksmali threads come out of one budget shared by every dex file, leaving a
+            // thread of the pool's jobs to the other tasks
+            final int smaliJobs = Math.max(1, jobs - 1);
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    mAndrolib.decodeSourcesSmali(mApkFile, outDir, dexFiles, mBakDeb, api, smaliJobs);
+                }
+            });
+        } else {
+            for (final String file : dexFiles) {
+                runner.submit(new TaskRunner.Task() {
+                    @Override
+                    public void run() throws BrutException {
+                        decodeDex(outDir, file, api);
+                    }
+                });
+            }
+        }
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                mAndrolib.decodeRawFiles(mApkFile, outDir);
+            }
+        });
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                mAndrolib.decodeUnknownFiles(mApkFile, outDir, resTable);
+            }
+        });
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                mAndrolib.writeOriginalFiles(mApkFile, outDir);
+            }
+        });
+
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
     private File getOutDir() throws AndrolibException {
         if (mOutDir == null) {
             throw new AndrolibException("Out dir not set");
@@ -388,7 +501,6 @@ public class ApkDecoder {
     private short mDecodeSources = DECODE_SOURCES_SMALI;
     private short mDecodeResources = DECODE_RESOURCES_FULL;
     private boolean mForceDelete = false;
-    private boolean mKeepBrokenResources = false;
     private boolean mBakDeb = true;
     private Collection<String> mUncompressedFiles;
     private boolean mAnalysisMode = false;
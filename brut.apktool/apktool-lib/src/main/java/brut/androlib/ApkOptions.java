@@ -24,10 +24,17 @@ public class ApkOptions {
     public boolean copyOriginalFiles = false;
     public boolean updateFiles = false;
     public boolean isFramework = false;
+    public boolean keepBrokenResources = false;
     public boolean resourcesAreCompressed = false;
     public Collection<String> doNotCompress;
+    public int jobs = 1;
+    public boolean lazyResTable = false;
+    public boolean compactResValues = false;
+    public boolean singlePass = false;
+    public boolean incrementalSmali = false;
 
     public String frameworkFolderLocation = null;
     public String frameworkTag = null;
+    public String smaliCacheDir = null;
     public String aaptPath = "";
 }
@@ -0,0 +1,238 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.androlib;
+
+import brut.common.BrutException;
+import brut.util.TaskRunner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the size, modification time and SHA-1 of every input file of each build
+ * stage, in build/apktool.manifest. A stage is only rebuilt when the content of its
+ * inputs changed, so files that were merely touched don't trigger a rebuild.
+ *
+ * Files whose size and modification time match the manifest are not read; the others
+ * are hashed on up to jobs threads. Files modified within MODIFIED_TIME_GRANULARITY of a
+ * check are recorded without their time, as a later edit may keep both size and time,
+ * so they are hashed again on the next check.
+ */
+public class BuildManifest {
+    public BuildManifest(File appDir, int jobs) {
+        mAppDir = appDir;
+        mJobs = Math.max(1, jobs);
+        mFile = new File(appDir, MANIFEST_FILENAME);
+        load();
+    }
+
+    /**
+     * Checks the inputs of a stage against the manifest. The new state of a modified stage
+     * is only recorded by {@link #update(String)}, once the stage is built.
+     */
+    public boolean isModified(String stage, File[] inputs) throws AndrolibException {
+        long racyTime = System.currentTimeMillis() - MODIFIED_TIME_GRANULARITY;
+        Map<String, FileState> recorded;
+        synchronized (this) {
+            recorded = mStages.get(stage);
+        }
+
+        Map<String, File> files = new HashMap<String, File>();
+        for (File input : inputs) {
+            listFiles(input, getRelativePath(input), files);
+        }
+
+        boolean modified = recorded == null || ! recorded.keySet().equals(files.keySet());
+        Map<String, FileState> state = new HashMap<String, FileState>();
+        List<FileState> changed = new ArrayList<FileState>();
+        List<File> changedFiles = new ArrayList<File>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            File file = entry.getValue();
+            long size = file.length();
+            long modifiedTime = file.lastModified();
+
+            FileState old = recorded == null ? null : recorded.get(entry.getKey());
+            if (old != null && old.size == size && old.modifiedTime == modifiedTime) {
+                state.put(entry.getKey(), old);
+            } else {
+                FileState fileState = new FileState(size, modifiedTime >= racyTime ? UNKNOWN_TIME : modifiedTime,
+                        old == null ? null : old.hash);
+                state.put(entry.getKey(), fileState);
+                changed.add(fileState);
+                changedFiles.add(file);
+            }
+        }
+
+        hash(changed, changedFiles);
+        for (int i = 0; i < changed.size() && ! modified; i++) {
+            if (changed.get(i).oldHash == null || ! changed.get(i).oldHash.equals(changed.get(i).hash)) {
+                modified = true;
+            }
+        }
+
+        synchronized (this) {
+            if (modified) {
+                mPending.put(stage, state);
+            } else {
+                mStages.put(stage, state);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Records the inputs of a stage as seen by the last {@link #isModified} check.
+     */
+    public synchronized void update(String stage) {
+        Map<String, FileState> state = mPending.remove(stage);
+        if (state != null) {
+            mStages.put(stage, state);
+        }
+    }
+
+    public synchronized void save() throws AndrolibException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mFile), StandardCharsets.UTF_8)))) {
+            out.println(MANIFEST_HEADER);
+            for (Map.Entry<String, Map<String, FileState>> stage : mStages.entrySet()) {
+                for (Map.Entry<String, FileState> file : stage.getValue().entrySet()) {
+                    FileState state = file.getValue();
+                    out.println(stage.getKey() + '\t' + file.getKey() + '\t' + state.size + '\t'
+                            + state.modifiedTime + '\t' + state.hash);
+                }
+            }
+        } catch (IOException ex) {
+            throw new AndrolibException("Could not write build manifest: " + mFile, ex);
+        }
+    }
+
+    private void load() {
+        if (! mFile.isFile()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile),
+                StandardCharsets.UTF_8))) {
+            if (! MANIFEST_HEADER.equals(in.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5 || ! fields[4].matches("[0-9a-f]{40}")) {
+                    throw new IOException("Malformed line: " + line);
+                }
+                Map<String, FileState> stage = mStages.get(fields[0]);
+                if (stage == null) {
+                    stage = new HashMap<String, FileState>();
+                    mStages.put(fields[0], stage);
+                }
+                stage.put(fields[1], new FileState(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                        fields[4]));
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // rebuild everything rather than trust a broken manifest
+            LOGGER.warning("Ignoring broken build manifest: " + ex.getMessage());
+            mStages.clear();
+        }
+    }
+
+    private void hash(final List<FileState> states, final List<File> files) throws AndrolibException {
+        if (mJobs <= 1 || states.size() <= 1) {
+            for (int i = 0; i < states.size(); i++) {
+                states.get(i).hash = hash(files.get(i));
+            }
+            return;
+        }
+
+        TaskRunner runner = new TaskRunner(Math.min(mJobs, states.size()), "apktool-hash");
+        for (int i = 0; i < states.size(); i++) {
+            final FileState state = states.get(i);
+            final File file = files.get(i);
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    state.hash = hash(file);
+                }
+            });
+        }
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
+    private static String hash(File file) throws AndrolibException {
+        try {
+            return Files.hash(file, Hashing.sha1()).toString();
+        } catch (IOException ex) {
+            throw new AndrolibException("Could not read: " + file, ex);
+        }
+    }
+
+    private void listFiles(File file, String path, Map<String, File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    listFiles(child, path + '/' + child.getName(), files);
+                }
+            }
+        } else if (file.exists()) {
+            files.put(path, file);
+        }
+    }
+
+    private String getRelativePath(File file) {
+        String path = mAppDir.toURI().relativize(file.toURI()).getPath();
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static class FileState {
+        final long size;
+        final long modifiedTime;
+        final String oldHash;
+        String hash;
+
+        FileState(long size, long modifiedTime, String hash) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.oldHash = hash;
+            this.hash = hash;
+        }
+    }
+
+    private final File mAppDir;
+    private final File mFile;
+    private final int mJobs;
+    private final Map<String, Map<String, FileState>> mStages = new HashMap<String, Map<String, FileState>>();
+    private final Map<String, Map<String, FileState>> mPending = new HashMap<String, Map<String, FileState>>();
+
+    private final static String MANIFEST_FILENAME = "build/apktool.manifest";
+    private final static String MANIFEST_HEADER = "apktool-build-manifest 1";
+
+    // coarsest modification time kept by common file systems (FAT)
+    private final static long MODIFIED_TIME_GRANULARITY = 2000;
+    private final static long UNKNOWN_TIME = -1;
+
+    private final static Logger LOGGER = Logger.getLogger(BuildManifest.class.getName());
+}
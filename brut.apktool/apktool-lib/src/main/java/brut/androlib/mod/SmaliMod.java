@@ -53,42 +53,63 @@ public class SmaliMod {
     public static boolean assembleSmaliFile(File smaliFile,DexBuilder dexBuilder, boolean verboseErrors,
                                             boolean printTokens) throws IOException, RecognitionException {
 
+        ParsedSmaliFile parsed = parseSmaliFile(smaliFile, verboseErrors, printTokens);
+        return parsed != null && assembleSmaliFile(parsed, dexBuilder, verboseErrors);
+    }
+
+    /**
+     * Lexes and parses a smali file without touching any DexBuilder, so it may be called
+     * from several threads at once. Returns null if the file has syntax errors.
+     */
+    public static ParsedSmaliFile parseSmaliFile(File smaliFile, boolean verboseErrors, boolean printTokens)
+            throws IOException, RecognitionException {
+
         CommonTokenStream tokens;
         LexerErrorInterface lexer;
 
-        InputStream is = new FileInputStream(smaliFile);
-        InputStreamReader reader = new InputStreamReader(is, "UTF-8");
+        try (
+                InputStream is = new FileInputStream(smaliFile);
+                InputStreamReader reader = new InputStreamReader(is, "UTF-8")
+        ) {
+            lexer = new smaliFlexLexer(reader);
+            ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
+            tokens = new CommonTokenStream((TokenSource) lexer);
 
-        lexer = new smaliFlexLexer(reader);
-        ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
-        tokens = new CommonTokenStream((TokenSource) lexer);
+            if (printTokens) {
+                tokens.getTokens();
 
-        if (printTokens) {
-            tokens.getTokens();
+                for (int i=0; i<tokens.size(); i++) {
+                    Token token = tokens.get(i);
+                    if (token.getChannel() == smaliParser.HIDDEN) {
+                        continue;
+                    }
 
-            for (int i=0; i<tokens.size(); i++) {
-                Token token = tokens.get(i);
-                if (token.getChannel() == smaliParser.HIDDEN) {
-                    continue;
+                    System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
                 }
-
-                System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
             }
-        }
 
-        smaliParser parser = new smaliParser(tokens);
-        parser.setVerboseErrors(verboseErrors);
+            smaliParser parser = new smaliParser(tokens);
+            parser.setVerboseErrors(verboseErrors);
+
+            smaliParser.smali_file_return result = parser.smali_file();
 
-        smaliParser.smali_file_return result = parser.smali_file();
+            if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+                return null;
+            }
 
-        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
-            return false;
+            return new ParsedSmaliFile((CommonTree) result.getTree(), tokens);
         }
+    }
 
-        CommonTree t = (CommonTree) result.getTree();
+    /**
+     * Walks a parsed smali file into the DexBuilder. Calls for one DexBuilder should be made
+     * from a single thread, in the order the classes are meant to be added.
+     */
+    public static boolean assembleSmaliFile(ParsedSmaliFile parsed, DexBuilder dexBuilder, boolean verboseErrors)
+            throws RecognitionException {
 
-        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-        treeStream.setTokenStream(tokens);
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(parsed.tree);
+        treeStream.setTokenStream(parsed.tokens);
 
         smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
 
@@ -96,9 +117,16 @@ public class SmaliMod {
         dexGen.setDexBuilder(dexBuilder);
         dexGen.smali_file();
 
-        is.close();
-        reader.close();
-
         return dexGen.getNumberOfSyntaxErrors() == 0;
     }
+
+    public static class ParsedSmaliFile {
+        private final CommonTree tree;
+        private final CommonTokenStream tokens;
+
+        private ParsedSmaliFile(CommonTree tree, CommonTokenStream tokens) {
+            this.tree = tree;
+            this.tokens = tokens;
+        }
+    }
 }
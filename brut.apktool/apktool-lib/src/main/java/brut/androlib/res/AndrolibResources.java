@@ -34,15 +34,22 @@ import brut.common.BrutException;
 import brut.directory.Directory;
 import brut.directory.DirectoryException;
 import brut.directory.FileDirectory;
+import brut.directory.ZipRODirectory;
 import brut.util.Duo;
 import brut.util.Jar;
 import brut.util.OS;
 import brut.util.OSDetection;
+import brut.util.TaskRunner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import org.apache.commons.io.IOUtils;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
@@ -60,6 +67,8 @@ final public class AndrolibResources {
     public ResTable getResTable(ExtFile apkFile, boolean loadMainPkg)
             throws AndrolibException {
         ResTable resTable = new ResTable(this);
+        resTable.setLazyLoading(apkOptions.lazyResTable);
+        resTable.setCompactValues(apkOptions.compactResValues);
         if (loadMainPkg) {
             loadMainPkg(resTable, apkFile);
         }
@@ -69,7 +78,7 @@ final public class AndrolibResources {
     public ResPackage loadMainPkg(ResTable resTable, ExtFile apkFile)
             throws AndrolibException {
         LOGGER.info("Loading resource table...");
-        ResPackage[] pkgs = getResPackagesFromApk(apkFile, resTable, sKeepBroken);
+        ResPackage[] pkgs = getResPackagesFromApk(apkFile, resTable, apkOptions.keepBrokenResources);
         ResPackage pkg = null;
 
         switch (pkgs.length) {
@@ -120,8 +129,22 @@ final public class AndrolibResources {
             throws AndrolibException {
         File apk = getFrameworkApk(id, frameTag);
 
+        ResPackage pkg;
+        FrameworkPackageCache cache = FrameworkPackageCache.getInstance();
+        if (cache.isEnabled()) {
+            pkg = cache.get(id, frameTag, apk, new SharedFrameworkLoader(apkOptions));
+        } else {
+            pkg = decodeFrameworkPkg(resTable, id, frameTag, apk);
+        }
+
+        resTable.addPackage(pkg, false);
+        return pkg;
+    }
+
+    private ResPackage decodeFrameworkPkg(ResTable resTable, int id, String frameTag, File apk)
+            throws AndrolibException {
         LOGGER.info("Loading resource table from file: " + apk);
-        ResPackage[] pkgs = getResPackagesFromApk(new ExtFile(apk), resTable, true);
+        ResPackage[] pkgs = getFrameworkPackages(apk, frameTag, resTable);
 
         ResPackage pkg;
         if (pkgs.length > 1) {
@@ -135,8 +158,6 @@ final public class AndrolibResources {
         if (pkg.getId() != id) {
             throw new AndrolibException("Expected pkg of id: " + String.valueOf(id) + ", got: " + pkg.getId());
         }
-
-        resTable.addPackage(pkg, false);
         return pkg;
     }
 
@@ -250,28 +271,145 @@ final public class AndrolibResources {
             throw new AndrolibException(ex);
         }
 
+        // lazily loaded packages materialize types on lookup, so they can't be shared
+        int jobs = resTable.getLazyLoading() ? 1 : apkOptions.jobs;
         ExtMXSerializer xmlSerializer = getResXmlSerializer();
+        AndrolibException firstError = null;
         for (ResPackage pkg : resTable.listMainPackages()) {
             attrDecoder.setCurrentPackage(pkg);
 
             LOGGER.info("Decoding file-resources...");
-            for (ResResource res : pkg.listFiles()) {
-                fileDecoder.decode(res, in, out);
+            if (jobs > 1) {
+                AndrolibException error = decodeFilesParallel(pkg, in, new File(outDir, "res"), jobs);
+                if (firstError == null) {
+                    firstError = error;
+                }
+            } else {
+                // decoding may replace broken files, which updates the listing
+                for (ResResource res : new ArrayList<ResResource>(pkg.listFiles())) {
+                    fileDecoder.decode(res, in, out);
+                }
             }
 
             LOGGER.info("Decoding values */* XMLs...");
-            for (ResValuesFile valuesFile : pkg.listValuesFiles()) {
-                generateValuesFile(valuesFile, out, xmlSerializer);
+            if (jobs > 1) {
+                generateValuesFilesParallel(pkg, new File(outDir, "res"), jobs);
+            } else {
+                for (ResTypeSpec type : pkg.listTypes()) {
+                    for (ResValuesFile valuesFile : pkg.listValuesFiles(type)) {
+                        generateValuesFile(valuesFile, out, xmlSerializer);
+                    }
+                }
             }
             generatePublicXml(pkg, out, xmlSerializer);
         }
 
         AndrolibException decodeError = duo.m2.getFirstError();
+        if (decodeError == null) {
+            decodeError = firstError;
+        }
         if (decodeError != null) {
             throw decodeError;
         }
     }
 
+    /**
+     * Decodes the file-resources of a package on up to <code>jobs</code> threads. Every
+     * worker has its own parser, serializer and output directory, while the resource
+     * table is only read. Returns the first recoverable xml error, if any.
+     */
+    private AndrolibException decodeFilesParallel(final ResPackage pkg, final Directory in, final File outDir,
+                                                  int jobs) throws AndrolibException {
+        final List<ResResource> files = new ArrayList<ResResource>(pkg.listFiles());
+        if (files.isEmpty()) {
+            return null;
+        }
+        if (in != null) {
+            // directory listings are loaded lazily, do it once before sharing
+            in.getFiles(true);
+        }
+
+        int workers = Math.min(jobs, files.size());
+        final AtomicInteger next = new AtomicInteger();
+        final AndrolibException[] errors = new AndrolibException[workers];
+
+        TaskRunner runner = new TaskRunner(workers, "apktool-res");
+        for (int i = 0; i < workers; i++) {
+            final int worker = i;
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    Duo<ResFileDecoder, AXmlResourceParser> duo = getResFileDecoder();
+                    duo.m2.getAttrDecoder().setCurrentPackage(pkg);
+                    Directory out = new FileDirectory(outDir);
+
+                    int index;
+                    while ((index = next.getAndIncrement()) < files.size()) {
+                        duo.m1.decode(files.get(index), in, out);
+                    }
+                    errors[worker] = duo.m2.getFirstError();
+                }
+            });
+        }
+
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+
+        for (AndrolibException error : errors) {
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the values files of a package on up to <code>jobs</code> threads, each with
+     * its own serializer and output directory. Workers take one type at a time, so only the
+     * values files of the types being written are held in memory.
+     */
+    private void generateValuesFilesParallel(final ResPackage pkg, final File outDir, int jobs)
+            throws AndrolibException {
+        final List<ResTypeSpec> types = pkg.listTypes();
+        if (types.isEmpty()) {
+            return;
+        }
+
+        int workers = Math.min(jobs, types.size());
+        final AtomicInteger next = new AtomicInteger();
+
+        TaskRunner runner = new TaskRunner(workers, "apktool-values");
+        for (int i = 0; i < workers; i++) {
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    ExtMXSerializer serial = getResXmlSerializer();
+                    Directory out = new FileDirectory(outDir);
+
+                    int index;
+                    while ((index = next.getAndIncrement()) < types.size()) {
+                        for (ResValuesFile valuesFile : pkg.listValuesFiles(types.get(index))) {
+                            generateValuesFile(valuesFile, out, serial);
+                        }
+                    }
+                }
+            });
+        }
+
+        try {
+            runner.await();
+        } catch (AndrolibException ex) {
+            throw ex;
+        } catch (BrutException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
     public void setSdkInfo(Map<String, String> map) {
         if (map != null) {
             mMinSdkVersion = map.get("minSdkVersion");
@@ -550,14 +688,167 @@ final public class AndrolibResources {
 
     private ResPackage[] getResPackagesFromApk(ExtFile apkFile,ResTable resTable, boolean keepBroken)
             throws AndrolibException {
+        return getResPackagesFromApk(apkFile, resTable, keepBroken, null);
+    }
+
+    private ResPackage[] getResPackagesFromApk(ExtFile apkFile, ResTable resTable, boolean keepBroken,
+                                               OutputStream snapshot)
+            throws AndrolibException {
         try {
-            BufferedInputStream bfi = new BufferedInputStream(apkFile.getDirectory().getFileInput("resources.arsc"));
-            return ARSCDecoder.decode(bfi, false, keepBroken, resTable).getPackages();
-        } catch (DirectoryException ex) {
+            Directory dir = apkFile.getDirectory();
+            ByteBuffer arsc = null;
+            if (dir instanceof ZipRODirectory) {
+                // resources.arsc is normally stored uncompressed, so it can be read in place
+                arsc = ((ZipRODirectory) dir).mapStoredFile("resources.arsc");
+            }
+            if (arsc == null) {
+                try (InputStream in = dir.getFileInput("resources.arsc")) {
+                    arsc = ByteBuffer.wrap(IOUtils.toByteArray(in));
+                }
+            }
+            return ARSCDecoder.decode(arsc, false, keepBroken, resTable, snapshot).getPackages();
+        } catch (DirectoryException | IOException ex) {
             throw new AndrolibException("Could not load resources.arsc from file: " + apkFile, ex);
         }
     }
 
+    /**
+     * Loads the packages of a framework apk, preferably from the snapshot kept next to it
+     * in the framework directory. The snapshot is rewritten whenever the apk or tag it was
+     * taken from no longer match.
+     *
+     * The snapshot records the SHA-1 of the apk along with its size and modification time.
+     * The apk is only hashed when the size or time differ; if only the time changed, the
+     * snapshot is kept and its header updated.
+     */
+    private ResPackage[] getFrameworkPackages(File apk, String frameTag, ResTable resTable)
+            throws AndrolibException {
+        File snapshot = getFrameworkSnapshot(apk);
+        String tag = frameTag == null ? "" : frameTag;
+
+        // read before hashing, a change meanwhile just makes the next load hash again
+        long size = apk.length();
+        long modified = apk.lastModified();
+        String hash = null;
+
+        if (snapshot.isFile()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(snapshot));
+                SnapshotHeader header = readSnapshotHeader(buffer);
+                if (header != null && header.tag.equals(tag)) {
+                    if (header.size == size && header.modified == modified) {
+                        return ARSCDecoder.decodeSnapshot(buffer, true, resTable).getPackages();
+                    }
+                    hash = hashFramework(apk);
+                    if (header.hash.equals(hash)) {
+                        ResPackage[] pkgs = ARSCDecoder.decodeSnapshot(buffer.duplicate(), true, resTable)
+                                .getPackages();
+                        writeFrameworkSnapshot(snapshot, new SnapshotHeader(size, modified, hash, tag), buffer);
+                        return pkgs;
+                    }
+                }
+                LOGGER.fine("Framework snapshot is out of date: " + snapshot);
+            } catch (IOException | AndrolibException ex) {
+                LOGGER.warning("Could not read framework snapshot: " + snapshot + " (" + ex.getMessage() + ")");
+                snapshot.delete();
+            }
+        }
+
+        if (hash == null) {
+            hash = hashFramework(apk);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ResPackage[] pkgs = getResPackagesFromApk(new ExtFile(apk), resTable, true, body);
+        writeFrameworkSnapshot(snapshot, new SnapshotHeader(size, modified, hash, tag),
+                ByteBuffer.wrap(body.toByteArray()));
+        return pkgs;
+    }
+
+    private static String hashFramework(File apk) throws AndrolibException {
+        try {
+            return Files.hash(apk, Hashing.sha1()).toString();
+        } catch (IOException ex) {
+            throw new AndrolibException("Could not read framework file: " + apk, ex);
+        }
+    }
+
+    /**
+     * Reads the header of a snapshot, leaving buffer at the snapshot body. Returns null if
+     * the snapshot was written by another version.
+     */
+    private static SnapshotHeader readSnapshotHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < 24 || buffer.getInt() != SNAPSHOT_MAGIC
+                || buffer.getInt() != ARSCDecoder.SNAPSHOT_VERSION) {
+            return null;
+        }
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        String hash = readSnapshotString(buffer);
+        String tag = hash == null ? null : readSnapshotString(buffer);
+        return tag == null ? null : new SnapshotHeader(size, modified, hash, tag);
+    }
+
+    private static String readSnapshotString(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeFrameworkSnapshot(File snapshot, SnapshotHeader header, ByteBuffer body) {
+        File tmp = null;
+        try {
+            // several decodes may share the framework directory, so move a finished file in place
+            tmp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(ARSCDecoder.SNAPSHOT_VERSION);
+                out.writeLong(header.size);
+                out.writeLong(header.modified);
+                for (String string : new String[] { header.hash, header.tag }) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            }
+            Files.move(tmp, snapshot);
+        } catch (IOException ex) {
+            LOGGER.warning("Could not write framework snapshot: " + snapshot + " (" + ex.getMessage() + ")");
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static class SnapshotHeader {
+        final long size;
+        final long modified;
+        final String hash;
+        final String tag;
+
+        SnapshotHeader(long size, long modified, String hash, String tag) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.tag = tag;
+        }
+    }
+
+    private File getFrameworkSnapshot(File apk) {
+        String name = apk.getName();
+        if (name.endsWith(".apk")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(apk.getParentFile(), name + ".snapshot");
+    }
+
     public File getFrameworkApk(int id, String frameTag)
             throws AndrolibException {
         File dir = getFrameworkDir();
@@ -576,12 +867,24 @@ final public class AndrolibResources {
         }
 
         if (id == 1) {
-            try (InputStream in = AndrolibResources.class.getResourceAsStream("/brut/androlib/android-framework.jar");
-                 OutputStream out = new FileOutputStream(apk)) {
-                IOUtils.copy(in, out);
+            // concurrent decodes may extract it at once, so only a complete file is moved in place
+            File tmp = null;
+            try {
+                tmp = File.createTempFile(apk.getName(), ".tmp", dir);
+                try (InputStream in = AndrolibResources.class.getResourceAsStream("/brut/androlib/android-framework.jar");
+                     OutputStream out = new FileOutputStream(tmp)) {
+                    IOUtils.copy(in, out);
+                }
+                if (! tmp.renameTo(apk) && ! apk.isFile()) {
+                    throw new AndrolibException("Could not write framework: " + apk);
+                }
                 return apk;
             } catch (IOException ex) {
                 throw new AndrolibException(ex);
+            } finally {
+                if (tmp != null) {
+                    tmp.delete();
+                }
             }
         }
 
@@ -596,6 +899,7 @@ final public class AndrolibResources {
             throws AndrolibException {
         InputStream in = null;
         ZipOutputStream out = null;
+        File tmpFile = null;
         try {
             ZipFile zip = new ZipFile(frameFile);
             ZipEntry entry = zip.getEntry("resources.arsc");
@@ -607,7 +911,7 @@ final public class AndrolibResources {
             in = zip.getInputStream(entry);
             byte[] data = IOUtils.toByteArray(in);
 
-            ARSCData arsc = ARSCDecoder.decode(new ByteArrayInputStream(data), true, true);
+            ARSCData arsc = ARSCDecoder.decode(ByteBuffer.wrap(data), true, true, new ResTable());
             publicizeResources(data, arsc.getFlagsOffsets());
 
             File outFile = new File(getFrameworkDir(), String.valueOf(arsc
@@ -615,7 +919,9 @@ final public class AndrolibResources {
                     + (tag == null ? "" : '-' + tag)
                     + ".apk");
 
-            out = new ZipOutputStream(new FileOutputStream(outFile));
+            // decodes may be reading the framework meanwhile, so it is replaced only once written
+            tmpFile = File.createTempFile(outFile.getName(), ".tmp", outFile.getParentFile());
+            out = new ZipOutputStream(new FileOutputStream(tmpFile));
             out.setMethod(ZipOutputStream.STORED);
             CRC32 crc = new CRC32();
             crc.update(data);
@@ -642,12 +948,18 @@ final public class AndrolibResources {
             }
 
             zip.close();
+            out.close();
+            Files.move(tmpFile, outFile);
+            FrameworkPackageCache.getInstance().clear();
             LOGGER.info("Framework installed to: " + outFile);
         } catch (IOException ex) {
             throw new AndrolibException(ex);
         } finally {
             IOUtils.closeQuietly(in);
             IOUtils.closeQuietly(out);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
         }
     }
 
@@ -665,7 +977,7 @@ final public class AndrolibResources {
     }
 
     public void publicizeResources(byte[] arsc) throws AndrolibException {
-        publicizeResources(arsc, ARSCDecoder.decode(new ByteArrayInputStream(arsc), true, true).getFlagsOffsets());
+        publicizeResources(arsc, ARSCDecoder.decode(ByteBuffer.wrap(arsc), true, true, new ResTable()).getFlagsOffsets());
     }
 
     public void publicizeResources(byte[] arsc, FlagsOffset[] flagsOffsets)
@@ -718,7 +1030,8 @@ final public class AndrolibResources {
         }
 
         if (! dir.exists()) {
-            if (! dir.mkdirs()) {
+            // another decode may have created it meanwhile
+            if (! dir.mkdirs() && ! dir.isDirectory()) {
                 if (apkOptions.frameworkFolderLocation != null) {
                     LOGGER.severe("Can't create Framework directory: " + dir);
                 }
@@ -772,15 +1085,45 @@ final public class AndrolibResources {
         }
     }
 
-    public ApkOptions apkOptions;
+    /**
+     * Decodes framework packages for the shared cache. Cached packages outlive the decode
+     * that loaded them, so they get a table and resources instance of their own, set up
+     * from a copy of the options the framework decode depends on.
+     */
+    private static class SharedFrameworkLoader implements FrameworkPackageCache.Loader {
+        public SharedFrameworkLoader(ApkOptions apkOptions) {
+            mApkOptions = new ApkOptions();
+            mApkOptions.frameworkFolderLocation = apkOptions.frameworkFolderLocation;
+            mApkOptions.frameworkTag = apkOptions.frameworkTag;
+            mApkOptions.compactResValues = apkOptions.compactResValues;
+        }
+
+        @Override
+        public ResPackage load(int id, String frameTag, File apk) throws AndrolibException {
+            AndrolibResources andRes = new AndrolibResources();
+            andRes.apkOptions = mApkOptions;
+
+            // shared packages live in a table of their own, so they never see another
+            // decode's main package or lazy loading settings
+            ResTable frameTable = new ResTable(andRes);
+            frameTable.setCompactValues(mApkOptions.compactResValues);
+            ResPackage pkg = andRes.decodeFrameworkPkg(frameTable, id, frameTag, apk);
+            frameTable.addPackage(pkg, false);
+            return pkg;
+        }
 
-    // TODO: dirty static hack. I have to refactor decoding mechanisms.
-    public static boolean sKeepBroken = false;
+        private final ApkOptions mApkOptions;
+    }
+
+    public ApkOptions apkOptions;
 
     private final static Logger LOGGER = Logger.getLogger(AndrolibResources.class.getName());
 
     private File mFrameworkDirectory = null;
 
+    // "ARS2", the header gained the size and modification time of the apk
+    private final static int SNAPSHOT_MAGIC = 0x41525332;
+
     private String mMinSdkVersion = null;
     private String mMaxSdkVersion = null;
     private String mTargetSdkVersion = null;
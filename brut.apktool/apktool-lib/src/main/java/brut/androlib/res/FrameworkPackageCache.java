@@ -0,0 +1,192 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.androlib.res;
+
+import brut.androlib.AndrolibException;
+import brut.androlib.res.data.ResPackage;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide cache of decoded framework packages, shared by every ResTable that loads
+ * the same framework file. Cached packages are fully loaded and are not modified after
+ * decoding, so they may be read by several decodes at once.
+ *
+ * Entries are keyed by package id, frame tag and the path, size and modification time of
+ * the framework apk. The least recently used entry is evicted once the cache is full.
+ *
+ * The cache is disabled by default, as a single decode never hits it. Processes running
+ * many decodes turn it on with ApkDecoder.setFrameworkCacheSize() or setMaxSize().
+ */
+public final class FrameworkPackageCache {
+    public interface Loader {
+        /**
+         * Decodes the framework package. Loaders are kept until the load finishes, so they
+         * should only hold what the load needs.
+         */
+        ResPackage load(int id, String frameTag, File apk) throws AndrolibException;
+    }
+
+    public static FrameworkPackageCache getInstance() {
+        return sInstance;
+    }
+
+    FrameworkPackageCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached package for the given framework file, calling the loader on a miss.
+     * Concurrent lookups of the same key wait for a single load.
+     */
+    public ResPackage get(final int id, final String frameTag, final File apk, final Loader loader)
+            throws AndrolibException {
+        String key = getKey(id, frameTag, apk);
+        FutureTask<ResPackage> task;
+        boolean load = false;
+
+        synchronized (this) {
+            task = mPackages.get(key);
+            if (task == null) {
+                task = new FutureTask<ResPackage>(new Callable<ResPackage>() {
+                    @Override
+                    public ResPackage call() throws AndrolibException {
+                        return loader.load(id, frameTag, apk);
+                    }
+                });
+                mPackages.put(key, task);
+                load = true;
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+        }
+
+        if (load) {
+            task.run();
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (mPackages.get(key) == task) {
+                    mPackages.remove(key);
+                }
+            }
+            Throwable cause = ex.getCause();
+            if (cause instanceof AndrolibException) {
+                throw (AndrolibException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AndrolibException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AndrolibException(ex);
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return mMaxSize > 0;
+    }
+
+    /**
+     * Sets the number of framework packages kept. A size of 0 disables the cache.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = Math.max(0, maxSize);
+        evict();
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int size() {
+        return mPackages.size();
+    }
+
+    public synchronized void clear() {
+        mPackages.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FrameworkPackageCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                mPackages.size(), mMaxSize, mHitCount, mMissCount, mEvictionCount);
+    }
+
+    private void evict() {
+        while (mPackages.size() > mMaxSize) {
+            mPackages.remove(mPackages.keySet().iterator().next());
+            mEvictionCount++;
+        }
+    }
+
+    private static String getKey(int id, String frameTag, File apk) throws AndrolibException {
+        try {
+            return id + ":" + (frameTag == null ? "" : frameTag) + ":" + apk.getCanonicalPath()
+                    + ":" + apk.length() + ":" + apk.lastModified();
+        } catch (IOException ex) {
+            throw new AndrolibException("Could not read framework file: " + apk, ex);
+        }
+    }
+
+    private final Map<String, FutureTask<ResPackage>> mPackages =
+            new LinkedHashMap<String, FutureTask<ResPackage>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FutureTask<ResPackage>> eldest) {
+                    if (size() > mMaxSize) {
+                        mEvictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private int mMaxSize;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    /**
+     * Size used by the batch decoder and the daemon. Single decodes leave the cache off,
+     * as nothing would ever hit it.
+     */
+    public final static int SHARED_SIZE = 4;
+
+    private final static FrameworkPackageCache sInstance = new FrameworkPackageCache(0);
+}
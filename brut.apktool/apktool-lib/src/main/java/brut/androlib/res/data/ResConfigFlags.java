@@ -16,6 +16,9 @@
 
 package brut.androlib.res.data;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -59,6 +62,11 @@ public class ResConfigFlags {
 
     private final int size;
 
+    private int mIndex = -1;
+
+    // the shared instance, once intern() found it; set after mIndex, which it publishes
+    private volatile ResConfigFlags mInterned;
+
     public ResConfigFlags() {
         mcc = 0;
         mnc = 0;
@@ -457,6 +465,47 @@ public class ResConfigFlags {
     }
 
 
+    /**
+     * Returns the shared instance equal to this config. Interned configs get a small
+     * index, unique for each distinct config, which can key compact arrays.
+     *
+     * The table only holds configs weakly, so ones no longer used by any package drop out
+     * of it; indexes are never reused. Invalid configs get an index but are not added, as
+     * their -ERRn qualifiers never repeat.
+     */
+    public ResConfigFlags intern() {
+        ResConfigFlags interned = mInterned;
+        if (interned != null) {
+            return interned;
+        }
+        synchronized (sInterned) {
+            if (mInterned != null) {
+                return mInterned;
+            }
+            WeakReference<ResConfigFlags> ref = isInvalid ? null : sInterned.get(this);
+            interned = ref == null ? null : ref.get();
+            if (interned == null) {
+                mIndex = sNextIndex++;
+                if (! isInvalid) {
+                    sInterned.put(this, new WeakReference<ResConfigFlags>(this));
+                }
+                interned = this;
+            } else {
+                // equal copies share the index, so later lookups skip the table
+                mIndex = interned.mIndex;
+            }
+            mInterned = interned;
+            return interned;
+        }
+    }
+
+    public int getIndex() {
+        if (mInterned == null) {
+            intern();
+        }
+        return mIndex;
+    }
+
     @Override
     public String toString() {
         return !getQualifiers().equals("") ? getQualifiers() : "[DEFAULT]";
@@ -485,6 +534,15 @@ public class ResConfigFlags {
     // but it would be hard right now and this feature is very rarely used.
     private static int sErrCounter = 0;
 
+    private final static Map<ResConfigFlags, WeakReference<ResConfigFlags>> sInterned =
+            new WeakHashMap<ResConfigFlags, WeakReference<ResConfigFlags>>();
+    private static int sNextIndex = 0;
+
+    /**
+     * The shared default config, interned first so its index is 0.
+     */
+    public final static ResConfigFlags DEFAULT = new ResConfigFlags().intern();
+
     public final static byte SDK_BASE = 1;
     public final static byte SDK_BASE_1_1 = 2;
     public final static byte SDK_CUPCAKE = 3;
@@ -33,11 +33,23 @@ public class ResPackage {
     private final int mId;
     private final String mName;
     private final Map<ResID, ResResSpec> mResSpecs = new LinkedHashMap<ResID, ResResSpec>();
+    // the same specs for lookups by id: [type][entry], ids are dense within a type
+    private ResResSpec[][] mSpecsByType = new ResResSpec[0][];
     private final Map<ResConfigFlags, ResType> mConfigs = new LinkedHashMap<ResConfigFlags, ResType>();
     private final Map<String, ResTypeSpec> mTypes = new LinkedHashMap<String, ResTypeSpec>();
     private final Set<ResID> mSynthesizedRes = new HashSet<ResID>();
 
+    private final Set<Byte> mPendingTypes = new LinkedHashSet<Byte>();
+
+    // resources grouped for decoding, see buildResourceIndex()
+    private boolean mResourceIndexed = false;
+    private final Map<Duo<ResResSpec, ResType>, ResResource> mFiles =
+            new LinkedHashMap<Duo<ResResSpec, ResType>, ResResource>();
+    private final Map<ResTypeSpec, Map<ResType, ResValuesFile>> mValuesFiles =
+            new LinkedHashMap<ResTypeSpec, Map<ResType, ResValuesFile>>();
+
     private ResValueFactory mValueFactory;
+    private volatile ResTypeLoader mTypeLoader;
 
     public ResPackage(ResTable resTable, int id, String name) {
         this.mResTable = resTable;
@@ -45,23 +57,65 @@ public class ResPackage {
         this.mName = name;
     }
 
-    public List<ResResSpec> listResSpecs() {
+    public List<ResResSpec> listResSpecs() throws AndrolibException {
+        loadAllTypes();
         return new ArrayList<ResResSpec>(mResSpecs.values());
     }
 
-    public boolean hasResSpec(ResID resID) {
-        return mResSpecs.containsKey(resID);
+    public boolean hasResSpec(ResID resID) throws AndrolibException {
+        return hasResSpec(resID.id);
     }
 
-    public ResResSpec getResSpec(ResID resID) throws UndefinedResObject {
-        ResResSpec spec = mResSpecs.get(resID);
+    public boolean hasResSpec(int resID) throws AndrolibException {
+        loadType((byte) (resID >> 16));
+        return findResSpec(resID) != null;
+    }
+
+    public ResResSpec getResSpec(ResID resID) throws AndrolibException {
+        return getResSpec(resID.id);
+    }
+
+    public ResResSpec getResSpec(int resID) throws AndrolibException {
+        loadType((byte) (resID >> 16));
+        ResResSpec spec = findResSpec(resID);
         if (spec == null) {
-            throw new UndefinedResObject("resource spec: " + resID.toString());
+            throw new UndefinedResObject("resource spec: " + String.format("0x%08x", resID));
         }
         return spec;
     }
 
-    public List<ResType> getConfigs() {
+    private ResResSpec findResSpec(int resID) {
+        int type = (resID >> 16) & 0xff;
+        int entry = resID & 0xffff;
+        if (type >= mSpecsByType.length || mSpecsByType[type] == null || entry >= mSpecsByType[type].length) {
+            return null;
+        }
+        ResResSpec spec = mSpecsByType[type][entry];
+        return spec != null && spec.getId().id == resID ? spec : null;
+    }
+
+    private void setResSpec(ResID resID, ResResSpec spec) {
+        int type = resID.type & 0xff;
+        int entry = resID.entry & 0xffff;
+        if (type >= mSpecsByType.length) {
+            if (spec == null) {
+                return;
+            }
+            mSpecsByType = Arrays.copyOf(mSpecsByType, type + 1);
+        }
+        ResResSpec[] specs = mSpecsByType[type];
+        if (specs == null || entry >= specs.length) {
+            if (spec == null) {
+                return;
+            }
+            specs = mSpecsByType[type] = specs == null ? new ResResSpec[Math.max(entry + 1, 16)]
+                    : Arrays.copyOf(specs, Math.max(entry + 1, specs.length * 2));
+        }
+        specs[entry] = spec;
+    }
+
+    public List<ResType> getConfigs() throws AndrolibException {
+        loadAllTypes();
         return new ArrayList<ResType>(mConfigs.values());
     }
 
@@ -77,11 +131,13 @@ public class ResPackage {
         return config;
     }
 
-    public int getResSpecCount() {
+    public int getResSpecCount() throws AndrolibException {
+        loadAllTypes();
         return mResSpecs.size();
     }
 
     public ResType getOrCreateConfig(ResConfigFlags flags) throws AndrolibException {
+        flags = flags.intern();
         ResType config = mConfigs.get(flags);
         if (config == null) {
             config = new ResType(flags);
@@ -106,36 +162,102 @@ public class ResPackage {
         return type;
     }
 
-    public Set<ResResource> listFiles() {
-        Set<ResResource> ret = new HashSet<ResResource>();
-        for (ResResSpec spec : mResSpecs.values()) {
-            for (ResResource res : spec.listResources()) {
-                if (res.getValue() instanceof ResFileValue) {
-                    ret.add(res);
-                }
+    /**
+     * Returns a read-only view of the file-resources. Decoding a file may replace its
+     * resource, so callers that decode should iterate over a copy.
+     */
+    public Collection<ResResource> listFiles() throws AndrolibException {
+        loadAllTypes();
+        synchronized (this) {
+            buildResourceIndex();
+            return Collections.unmodifiableCollection(mFiles.values());
+        }
+    }
+
+    public Collection<ResValuesFile> listValuesFiles() throws AndrolibException {
+        loadAllTypes();
+        List<ResValuesFile> ret = new ArrayList<ResValuesFile>();
+        synchronized (this) {
+            buildResourceIndex();
+            for (Map<ResType, ResValuesFile> valuesFiles : mValuesFiles.values()) {
+                addValuesFiles(valuesFiles, ret);
             }
         }
         return ret;
     }
 
-    public Collection<ResValuesFile> listValuesFiles() {
-        Map<Duo<ResTypeSpec, ResType>, ResValuesFile> ret = new HashMap<Duo<ResTypeSpec, ResType>, ResValuesFile>();
+    /**
+     * Returns the values files of a single type, in the order their configs first appear.
+     */
+    public Collection<ResValuesFile> listValuesFiles(ResTypeSpec type) throws AndrolibException {
+        loadType(type.getId());
+        List<ResValuesFile> ret = new ArrayList<ResValuesFile>();
+        synchronized (this) {
+            buildResourceIndex();
+            Map<ResType, ResValuesFile> valuesFiles = mValuesFiles.get(type);
+            if (valuesFiles != null) {
+                addValuesFiles(valuesFiles, ret);
+            }
+        }
+        return ret;
+    }
+
+    private static void addValuesFiles(Map<ResType, ResValuesFile> valuesFiles, List<ResValuesFile> ret) {
+        for (ResValuesFile values : valuesFiles.values()) {
+            if (! values.isEmpty()) {
+                ret.add(values);
+            }
+        }
+    }
+
+    /**
+     * Groups the resources loaded so far into files and values files. Framework packages
+     * are never listed, so the index is only built once a package is, and then kept up
+     * to date by addResource() and removeResource().
+     */
+    private void buildResourceIndex() {
+        if (mResourceIndexed) {
+            return;
+        }
+        mResourceIndexed = true;
         for (ResResSpec spec : mResSpecs.values()) {
             for (ResResource res : spec.listResources()) {
-                if (res.getValue() instanceof ResValuesXmlSerializable) {
-                    ResTypeSpec type = res.getResSpec().getType();
-                    ResType config = res.getConfig();
-                    Duo<ResTypeSpec, ResType> key = new Duo<ResTypeSpec, ResType>(type, config);
-                    ResValuesFile values = ret.get(key);
-                    if (values == null) {
-                        values = new ResValuesFile(this, type, config);
-                        ret.put(key, values);
-                    }
-                    values.addResource(res);
-                }
+                indexResource(res);
+            }
+        }
+    }
+
+    private void indexResource(ResResource res) {
+        Duo<ResResSpec, ResType> key = new Duo<ResResSpec, ResType>(res.getResSpec(), res.getConfig());
+        unindexResource(key);
+
+        if (res.isCompactValue() || res.getValue() instanceof ResValuesXmlSerializable) {
+            ResTypeSpec type = res.getResSpec().getType();
+            Map<ResType, ResValuesFile> valuesFiles = mValuesFiles.get(type);
+            if (valuesFiles == null) {
+                valuesFiles = new LinkedHashMap<ResType, ResValuesFile>();
+                mValuesFiles.put(type, valuesFiles);
+            }
+            ResValuesFile values = valuesFiles.get(res.getConfig());
+            if (values == null) {
+                values = new ResValuesFile(this, type, res.getConfig());
+                valuesFiles.put(res.getConfig(), values);
+            }
+            values.addResource(res);
+        } else if (res.getValue() instanceof ResFileValue) {
+            mFiles.put(key, res);
+        }
+    }
+
+    private void unindexResource(Duo<ResResSpec, ResType> key) {
+        mFiles.remove(key);
+        Map<ResType, ResValuesFile> valuesFiles = mValuesFiles.get(key.m1.getType());
+        if (valuesFiles != null) {
+            ResValuesFile values = valuesFiles.get(key.m2);
+            if (values != null) {
+                values.removeResource(key.m1);
             }
         }
-        return ret.values();
     }
 
     public ResTable getResTable() {
@@ -155,13 +277,19 @@ public class ResPackage {
     }
 
     public void removeResSpec(ResResSpec spec) throws AndrolibException {
-        mResSpecs.remove(spec.getId());
+        if (mResSpecs.remove(spec.getId()) != null) {
+            setResSpec(spec.getId(), null);
+            for (ResResource res : spec.listResources()) {
+                removeResource(res);
+            }
+        }
     }
 
     public void addResSpec(ResResSpec spec) throws AndrolibException {
         if (mResSpecs.put(spec.getId(), spec) != null) {
             throw new AndrolibException("Multiple resource specs: " + spec);
         }
+        setResSpec(spec.getId(), spec);
     }
 
     public void addConfig(ResType config) throws AndrolibException {
@@ -178,10 +306,27 @@ public class ResPackage {
         }
     }
 
-    public void addResource(ResResource res) {
+    /**
+     * Adds a resource, or one replacing the resource of the same spec and config, to the
+     * groupings returned by listFiles() and listValuesFiles().
+     */
+    public synchronized void addResource(ResResource res) {
+        if (mResourceIndexed) {
+            indexResource(res);
+        }
     }
 
-    public void removeResource(ResResource res) {
+    public synchronized void removeResource(ResResource res) {
+        if (mResourceIndexed) {
+            Duo<ResResSpec, ResType> key = new Duo<ResResSpec, ResType>(res.getResSpec(), res.getConfig());
+            if (mFiles.get(key) == res) {
+                mFiles.remove(key);
+            }
+            Map<ResType, ResValuesFile> valuesFiles = mValuesFiles.get(res.getResSpec().getType());
+            if (valuesFiles != null && valuesFiles.containsKey(res.getConfig())) {
+                valuesFiles.get(res.getConfig()).removeResource(res);
+            }
+        }
     }
 
     public void addSynthesizedRes(int resId) {
@@ -219,6 +364,70 @@ public class ResPackage {
         return hash;
     }
 
+    /**
+     * Defers the entries of the given types until one of them is looked up. Must be called
+     * before the package is shared; types are then loaded under the package lock, and once
+     * all of them are in, lookups no longer take it.
+     */
+    public synchronized void setTypeLoader(ResTypeLoader loader, Collection<Byte> typeIds) {
+        mPendingTypes.addAll(typeIds);
+        mTypeLoader = loader;
+    }
+
+    void loadType(byte typeId) throws AndrolibException {
+        // the loader is cleared after the last type is in, so fully loaded packages skip the lock
+        if (mTypeLoader == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mTypeLoader != null && mPendingTypes.remove(typeId)) {
+                mTypeLoader.loadType(this, typeId);
+                if (mPendingTypes.isEmpty()) {
+                    restoreTableOrder();
+                    mTypeLoader = null;
+                }
+            }
+        }
+    }
+
+    private void loadAllTypes() throws AndrolibException {
+        if (mTypeLoader == null) {
+            return;
+        }
+        synchronized (this) {
+            while (! mPendingTypes.isEmpty()) {
+                loadType(mPendingTypes.iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Types of a lazy package are loaded in lookup order. Once all of them are in, put
+     * the specs back in the order a full load would have produced.
+     */
+    private void restoreTableOrder() {
+        final Map<ResTypeSpec, Integer> typeOrder = new HashMap<ResTypeSpec, Integer>();
+        for (ResTypeSpec type : mTypes.values()) {
+            typeOrder.put(type, typeOrder.size());
+        }
+        List<ResResSpec> specs = new ArrayList<ResResSpec>(mResSpecs.values());
+        Collections.sort(specs, new Comparator<ResResSpec>() {
+            @Override
+            public int compare(ResResSpec o1, ResResSpec o2) {
+                return Integer.compare(indexOf(o1), indexOf(o2));
+            }
+
+            private int indexOf(ResResSpec spec) {
+                Integer index = typeOrder.get(spec.getType());
+                return index == null ? Integer.MAX_VALUE : index;
+            }
+        });
+        mResSpecs.clear();
+        for (ResResSpec spec : specs) {
+            mResSpecs.put(spec.getId(), spec);
+        }
+    }
+
     public ResValueFactory getValueFactory() {
         if (mValueFactory == null) {
             mValueFactory = new ResValueFactory(this);
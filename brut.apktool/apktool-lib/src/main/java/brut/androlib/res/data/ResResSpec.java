@@ -29,7 +29,14 @@ public class ResResSpec {
     private final String mName;
     private final ResPackage mPackage;
     private final ResTypeSpec mType;
-    private final Map<ResConfigFlags, ResResource> mResources = new LinkedHashMap<ResConfigFlags, ResResource>();
+
+    // resources in insertion order, keyed by the index of their interned config
+    private int[] mConfigIndexes = new int[1];
+    private ResResource[] mResources = new ResResource[1];
+    private int mResourceCount = 0;
+
+    // position among the specs of its type, see ResTypeSpec.addResSpec()
+    private int mOrder;
 
     public ResResSpec(ResID id, String name, ResPackage pkg, ResTypeSpec type) {
         this.mId = id;
@@ -38,8 +45,24 @@ public class ResResSpec {
         this.mType = type;
     }
 
-    public Set<ResResource> listResources() {
-        return new LinkedHashSet<ResResource>(mResources.values());
+    /**
+     * Returns a read-only view of the resources, in the order they were added.
+     */
+    public List<ResResource> listResources() {
+        return new AbstractList<ResResource>() {
+            @Override
+            public ResResource get(int index) {
+                if (index >= mResourceCount) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mResourceCount);
+                }
+                return mResources[index];
+            }
+
+            @Override
+            public int size() {
+                return mResourceCount;
+            }
+        };
     }
 
     public ResResource getResource(ResType config) throws AndrolibException {
@@ -47,11 +70,11 @@ public class ResResSpec {
     }
 
     public ResResource getResource(ResConfigFlags config) throws AndrolibException {
-        ResResource res = mResources.get(config);
-        if (res == null) {
+        int i = indexOf(config);
+        if (i < 0) {
             throw new UndefinedResObject(String.format("resource: spec=%s, config=%s", this, config));
         }
-        return res;
+        return mResources[i];
     }
 
     public boolean hasResource(ResType config) {
@@ -59,15 +82,15 @@ public class ResResSpec {
     }
 
     private boolean hasResource(ResConfigFlags flags) {
-        return mResources.containsKey(flags);
+        return indexOf(flags) >= 0;
     }
 
     public ResResource getDefaultResource() throws AndrolibException {
-        return getResource(new ResConfigFlags());
+        return getResource(ResConfigFlags.DEFAULT);
     }
 
     public boolean hasDefaultResource() {
-        return mResources.containsKey(new ResConfigFlags());
+        return hasResource(ResConfigFlags.DEFAULT);
     }
 
     public String getFullName() {
@@ -99,6 +122,14 @@ public class ResResSpec {
         return mType;
     }
 
+    int getOrder() {
+        return mOrder;
+    }
+
+    void setOrder(int order) {
+        mOrder = order;
+    }
+
     public boolean isDummyResSpec() {
         return getName().startsWith("APKTOOL_DUMMY_");
     }
@@ -109,14 +140,42 @@ public class ResResSpec {
 
     public void addResource(ResResource res, boolean overwrite) throws AndrolibException {
         ResConfigFlags flags = res.getConfig().getFlags();
-        if (mResources.put(flags, res) != null && !overwrite) {
-            throw new AndrolibException(String.format("Multiple resources: spec=%s, config=%s", this, flags));
+        int i = indexOf(flags);
+        if (i >= 0) {
+            mResources[i] = res;
+            if (!overwrite) {
+                throw new AndrolibException(String.format("Multiple resources: spec=%s, config=%s", this, flags));
+            }
+            return;
         }
+
+        if (mResourceCount == mResources.length) {
+            int length = mResourceCount * 2;
+            mConfigIndexes = Arrays.copyOf(mConfigIndexes, length);
+            mResources = Arrays.copyOf(mResources, length);
+        }
+        mConfigIndexes[mResourceCount] = flags.getIndex();
+        mResources[mResourceCount++] = res;
     }
 
     public void removeResource(ResResource res) throws AndrolibException {
-        ResConfigFlags flags = res.getConfig().getFlags();
-        mResources.remove(flags);
+        int i = indexOf(res.getConfig().getFlags());
+        if (i >= 0) {
+            mResourceCount--;
+            System.arraycopy(mConfigIndexes, i + 1, mConfigIndexes, i, mResourceCount - i);
+            System.arraycopy(mResources, i + 1, mResources, i, mResourceCount - i);
+            mResources[mResourceCount] = null;
+        }
+    }
+
+    private int indexOf(ResConfigFlags flags) {
+        int index = flags.getIndex();
+        for (int i = 0; i < mResourceCount; i++) {
+            if (mConfigIndexes[i] == index) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     @Override
@@ -26,11 +26,24 @@ public class ResResource {
     private final ResType mConfig;
     private final ResResSpec mResSpec;
     private final ResValue mValue;
+    private final int mValueSlot;
 
     public ResResource(ResType config, ResResSpec spec, ResValue value) {
         this.mConfig = config;
         this.mResSpec = spec;
         this.mValue = value;
+        this.mValueSlot = -1;
+    }
+
+    /**
+     * Creates a resource whose scalar value is kept in the config's compact value store
+     * and built on each getValue() call.
+     */
+    public ResResource(ResType config, ResResSpec spec, int valueSlot) {
+        this.mConfig = config;
+        this.mResSpec = spec;
+        this.mValue = null;
+        this.mValueSlot = valueSlot;
     }
 
     public String getFilePath() {
@@ -46,13 +59,26 @@ public class ResResource {
     }
 
     public ResValue getValue() {
-        return mValue;
+        if (mValueSlot < 0) {
+            return mValue;
+        }
+        try {
+            return mConfig.getCompactValue(mValueSlot, mResSpec.getPackage().getValueFactory());
+        } catch (AndrolibException ex) {
+            // types are checked when the value is stored
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    boolean isCompactValue() {
+        return mValueSlot >= 0;
     }
 
     public void replace(ResValue value) throws AndrolibException {
         ResResource res = new ResResource(mConfig, mResSpec, value);
         mConfig.addResource(res, true);
         mResSpec.addResource(res, true);
+        mResSpec.getPackage().addResource(res);
     }
 
     @Override
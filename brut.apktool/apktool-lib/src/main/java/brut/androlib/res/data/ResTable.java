@@ -22,6 +22,7 @@ import brut.androlib.meta.VersionInfo;
 import brut.androlib.res.AndrolibResources;
 import brut.androlib.res.data.value.ResValue;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Ryszard Wiśniewski <brut.alll@gmail.com>
@@ -29,8 +30,8 @@ import java.util.*;
 public class ResTable {
     private final AndrolibResources mAndRes;
 
-    private final Map<Integer, ResPackage> mPackagesById = new HashMap<Integer, ResPackage>();
-    private final Map<String, ResPackage> mPackagesByName = new HashMap<String, ResPackage>();
+    private final Map<Integer, ResPackage> mPackagesById = new ConcurrentHashMap<Integer, ResPackage>();
+    private final Map<String, ResPackage> mPackagesByName = new ConcurrentHashMap<String, ResPackage>();
     private final Set<ResPackage> mMainPackages = new LinkedHashSet<ResPackage>();
     private final Set<ResPackage> mFramePackages = new LinkedHashSet<ResPackage>();
 
@@ -39,6 +40,8 @@ public class ResTable {
     private int mPackageId;
     private boolean mAnalysisMode = false;
     private boolean mSharedLibrary = false;
+    private boolean mLazyLoading = false;
+    private boolean mCompactValues = false;
 
     private Map<String, String> mSdkInfo = new LinkedHashMap<>();
     private VersionInfo mVersionInfo = new VersionInfo();
@@ -59,7 +62,9 @@ public class ResTable {
             int pkgId = (mPackageId == 0 ? 2 : mPackageId);
             resID = (0xFF000000 & (pkgId << 24)) | resID;
         }
-        return getResSpec(new ResID(resID));
+        // same package id as new ResID(resID), without allocating one per lookup
+        int pkgId = resID >> 24;
+        return getPackage(pkgId == 0 ? 2 : pkgId).getResSpec(resID);
     }
 
     public ResResSpec getResSpec(ResID resID) throws AndrolibException {
@@ -80,7 +85,14 @@ public class ResTable {
             return pkg;
         }
         if (mAndRes != null) {
-            return mAndRes.loadFrameworkPkg(this, id, mAndRes.apkOptions.frameworkTag);
+            // file-resources may be decoded concurrently, so load each framework only once
+            synchronized (this) {
+                pkg = mPackagesById.get(id);
+                if (pkg != null) {
+                    return pkg;
+                }
+                return mAndRes.loadFrameworkPkg(this, id, mAndRes.apkOptions.frameworkTag);
+            }
         }
         throw new UndefinedResObject(String.format("package: id=%d", id));
     }
@@ -131,7 +143,7 @@ public class ResTable {
         return getPackage(package_).getType(type).getResSpec(name).getDefaultResource().getValue();
     }
 
-    public void addPackage(ResPackage pkg, boolean main) throws AndrolibException {
+    public synchronized void addPackage(ResPackage pkg, boolean main) throws AndrolibException {
         Integer id = pkg.getId();
         if (mPackagesById.containsKey(id)) {
             throw new AndrolibException("Multiple packages: id=" + id.toString());
@@ -170,6 +182,18 @@ public class ResTable {
         mSharedLibrary = flag;
     }
 
+    public void setLazyLoading(boolean flag) {
+        mLazyLoading = flag;
+    }
+
+    /**
+     * Keeps scalar values of tables decoded into this table as raw type and data, building
+     * value objects only when a resource's value is read.
+     */
+    public void setCompactValues(boolean flag) {
+        mCompactValues = flag;
+    }
+
     public void clearSdkInfo() {
         mSdkInfo.clear();
     }
@@ -213,4 +237,12 @@ public class ResTable {
     public boolean getSharedLibrary() {
         return mSharedLibrary;
     }
+
+    public boolean getLazyLoading() {
+        return mLazyLoading;
+    }
+
+    public boolean getCompactValues() {
+        return mCompactValues;
+    }
 }
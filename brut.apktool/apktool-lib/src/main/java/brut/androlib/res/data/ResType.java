@@ -18,6 +18,8 @@ package brut.androlib.res.data;
 
 import brut.androlib.AndrolibException;
 import brut.androlib.err.UndefinedResObject;
+import brut.androlib.res.data.value.ResScalarValue;
+import brut.androlib.res.data.value.ResValueFactory;
 import java.util.*;
 
 /**
@@ -27,6 +29,10 @@ public class ResType {
     private final ResConfigFlags mFlags;
     private final Map<ResResSpec, ResResource> mResources = new LinkedHashMap<ResResSpec, ResResource>();
 
+    // (type, data) pairs of scalar values that are built only when asked for
+    private int[] mCompactValues;
+    private int mCompactValueCount = 0;
+
     public ResType(ResConfigFlags flags) {
         this.mFlags = flags;
     }
@@ -67,6 +73,30 @@ public class ResType {
         }
     }
 
+    /**
+     * Keeps a scalar value as its raw type and data, and returns the slot to build it from.
+     * The type must be one ResValueFactory.isScalarType() accepts.
+     */
+    public synchronized int addCompactValue(int type, int data) {
+        if (mCompactValues == null) {
+            mCompactValues = new int[64];
+        } else if (mCompactValueCount * 2 == mCompactValues.length) {
+            mCompactValues = Arrays.copyOf(mCompactValues, mCompactValues.length * 2);
+        }
+        mCompactValues[mCompactValueCount * 2] = type;
+        mCompactValues[mCompactValueCount * 2 + 1] = data;
+        return mCompactValueCount++;
+    }
+
+    public ResScalarValue getCompactValue(int slot, ResValueFactory factory) throws AndrolibException {
+        int type, data;
+        synchronized (this) {
+            type = mCompactValues[slot * 2];
+            data = mCompactValues[slot * 2 + 1];
+        }
+        return factory.factory(type, data, null);
+    }
+
     @Override
     public String toString() {
         return mFlags.toString();
@@ -32,6 +32,7 @@ public final class ResTypeSpec {
 
     private final byte mId;
     private final int mEntryCount;
+    private int mSpecCount = 0;
 
     public ResTypeSpec(String name, ResTable resTable, ResPackage package_, byte id, int entryCount) {
         this.mName = name;
@@ -57,11 +58,13 @@ public final class ResTypeSpec {
         return mName.equalsIgnoreCase("string");
     }
 
-    public Set<ResResSpec> listResSpecs() {
+    public Set<ResResSpec> listResSpecs() throws AndrolibException {
+        mPackage.loadType(mId);
         return new LinkedHashSet<ResResSpec>(mResSpecs.values());
     }
 
     public ResResSpec getResSpec(String name) throws AndrolibException {
+        mPackage.loadType(mId);
         ResResSpec spec = mResSpecs.get(name);
         if (spec == null) {
             throw new UndefinedResObject(String.format("resource spec: %s/%s", getName(), name));
@@ -77,6 +80,7 @@ public final class ResTypeSpec {
         if (mResSpecs.put(spec.getName(), spec) != null) {
             throw new AndrolibException(String.format("Multiple res specs: %s/%s", getName(), spec.getName()));
         }
+        spec.setOrder(mSpecCount++);
     }
 
     @Override
@@ -16,8 +16,7 @@
 
 package brut.androlib.res.data;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Ryszard Wiśniewski <brut.alll@gmail.com>
@@ -26,7 +25,8 @@ public class ResValuesFile {
     private final ResPackage mPackage;
     private final ResTypeSpec mType;
     private final ResType mConfig;
-    private final Set<ResResource> mResources = new LinkedHashSet<ResResource>();
+    private final Map<ResResSpec, ResResource> mResources = new HashMap<ResResSpec, ResResource>();
+    private Set<ResResource> mSortedResources;
 
     public ResValuesFile(ResPackage pkg, ResTypeSpec type, ResType config) {
         this.mPackage = pkg;
@@ -40,8 +40,25 @@ public class ResValuesFile {
                 + ".xml";
     }
 
-    public Set<ResResource> listResources() {
-        return mResources;
+    /**
+     * Returns a read-only set of the resources, in the order of their specs within the type.
+     */
+    public synchronized Set<ResResource> listResources() {
+        if (mSortedResources == null) {
+            List<ResResource> resources = new ArrayList<ResResource>(mResources.values());
+            Collections.sort(resources, new Comparator<ResResource>() {
+                @Override
+                public int compare(ResResource o1, ResResource o2) {
+                    return Integer.compare(o1.getResSpec().getOrder(), o2.getResSpec().getOrder());
+                }
+            });
+            mSortedResources = Collections.unmodifiableSet(new LinkedHashSet<ResResource>(resources));
+        }
+        return mSortedResources;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mResources.isEmpty();
     }
 
     public ResTypeSpec getType() {
@@ -56,8 +73,25 @@ public class ResValuesFile {
         return mPackage.isSynthesized(res.getResSpec().getId());
     }
 
-    public void addResource(ResResource res) {
-        mResources.add(res);
+    /**
+     * Adds a resource, replacing the one of the same spec if there is one.
+     */
+    public synchronized void addResource(ResResource res) {
+        mResources.put(res.getResSpec(), res);
+        mSortedResources = null;
+    }
+
+    public synchronized void removeResource(ResResource res) {
+        if (mResources.get(res.getResSpec()) == res) {
+            mResources.remove(res.getResSpec());
+            mSortedResources = null;
+        }
+    }
+
+    synchronized void removeResource(ResResSpec spec) {
+        if (mResources.remove(spec) != null) {
+            mSortedResources = null;
+        }
     }
 
     @Override
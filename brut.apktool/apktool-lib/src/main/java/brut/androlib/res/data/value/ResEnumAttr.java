@@ -20,8 +20,8 @@ import brut.androlib.AndrolibException;
 import brut.androlib.res.data.ResResource;
 import brut.util.Duo;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.xmlpull.v1.XmlSerializer;
 
 /**
@@ -78,5 +78,5 @@ public class ResEnumAttr extends ResAttr {
     }
 
     private final Duo<ResReferenceValue, ResIntValue>[] mItems;
-    private final Map<Integer, String> mItemsCache = new HashMap<Integer, String>();
+    private final Map<Integer, String> mItemsCache = new ConcurrentHashMap<Integer, String>();
 }
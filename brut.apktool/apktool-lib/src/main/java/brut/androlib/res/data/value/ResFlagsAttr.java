@@ -107,7 +107,7 @@ public class ResFlagsAttr extends ResAttr {
         return ret.substring(1);
     }
 
-    private void loadFlags() {
+    private synchronized void loadFlags() {
         if (mFlags != null) {
             return;
         }
@@ -126,16 +126,17 @@ public class ResFlagsAttr extends ResAttr {
             }
         }
 
-        mZeroFlags = Arrays.copyOf(zeroFlags, zeroFlagsCount);
-        mFlags = Arrays.copyOf(flags, flagsCount);
-
-        Arrays.sort(mFlags, new Comparator<FlagItem>() {
+        flags = Arrays.copyOf(flags, flagsCount);
+        Arrays.sort(flags, new Comparator<FlagItem>() {
             @Override
             public int compare(FlagItem o1, FlagItem o2) {
                 return Integer.valueOf(Integer.bitCount(o2.flag)).compareTo(
                         Integer.bitCount(o1.flag));
             }
         });
+
+        mZeroFlags = Arrays.copyOf(zeroFlags, zeroFlagsCount);
+        mFlags = flags;
     }
 
     private final FlagItem[] mItems;
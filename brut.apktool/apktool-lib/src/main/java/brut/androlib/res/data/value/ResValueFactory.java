@@ -68,6 +68,25 @@ public class ResValueFactory {
         throw new AndrolibException("Invalid value type: " + type);
     }
 
+    /**
+     * Tells whether factory(type, value, null) can build a value of this type, i.e. the
+     * type is valid and its value needs no string.
+     */
+    public static boolean isScalarType(int type) {
+        switch (type) {
+            case TypedValue.TYPE_NULL:
+            case TypedValue.TYPE_REFERENCE:
+            case TypedValue.TYPE_ATTRIBUTE:
+            case TypedValue.TYPE_FLOAT:
+            case TypedValue.TYPE_DIMENSION:
+            case TypedValue.TYPE_FRACTION:
+            case TypedValue.TYPE_DYNAMIC_REFERENCE:
+                return true;
+        }
+        return (type >= TypedValue.TYPE_FIRST_COLOR_INT && type <= TypedValue.TYPE_LAST_COLOR_INT)
+                || (type >= TypedValue.TYPE_FIRST_INT && type <= TypedValue.TYPE_LAST_INT);
+    }
+
     public ResIntBasedValue factory(String value, int rawValue) {
         if (value.startsWith("res/")) {
             return new ResFileValue(value, rawValue);
@@ -20,15 +20,19 @@ import android.util.TypedValue;
 import brut.androlib.AndrolibException;
 import brut.androlib.res.data.*;
 import brut.androlib.res.data.value.*;
+import brut.util.ByteBufferDataInput;
 import brut.util.Duo;
 import brut.androlib.res.data.ResTable;
 import brut.util.ExtDataInput;
-import com.peterfranza.LittleEndianDataInputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Logger;
-import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.IOUtils;
 
 /**
  * @author Ryszard Wiśniewski <brut.alll@gmail.com>
@@ -43,8 +47,38 @@ public class ARSCDecoder {
                                   ResTable resTable)
             throws AndrolibException {
         try {
-            ARSCDecoder decoder = new ARSCDecoder(arscStream, resTable, findFlagsOffsets, keepBroken);
+            return decode(ByteBuffer.wrap(IOUtils.toByteArray(arscStream)), findFlagsOffsets, keepBroken, resTable);
+        } catch (IOException ex) {
+            throw new AndrolibException("Could not decode arsc file", ex);
+        }
+    }
+
+    /**
+     * Decodes a table held in a buffer, e.g. one mapped straight from the apk. The table
+     * is read from the buffer's current position; the buffer itself is left untouched.
+     */
+    public static ARSCData decode(ByteBuffer arscBuffer, boolean findFlagsOffsets, boolean keepBroken,
+                                  ResTable resTable)
+            throws AndrolibException {
+        return decode(arscBuffer, findFlagsOffsets, keepBroken, resTable, null);
+    }
+
+    /**
+     * Decodes a table and, if snapshotStream is not null, writes a snapshot of the decoded
+     * packages to it. The snapshot holds the entries with their strings already resolved
+     * and can be read back with decodeSnapshot(). Tables are always decoded fully while a
+     * snapshot is written.
+     */
+    public static ARSCData decode(ByteBuffer arscBuffer, boolean findFlagsOffsets, boolean keepBroken,
+                                  ResTable resTable, OutputStream snapshotStream)
+            throws AndrolibException {
+        try {
+            ARSCDecoder decoder = new ARSCDecoder(arscBuffer, resTable, findFlagsOffsets, keepBroken,
+                    snapshotStream, false);
             ResPackage[] pkgs = decoder.readTableHeader();
+            if (decoder.mSnapshot != null) {
+                decoder.mSnapshot.flush();
+            }
             return new ARSCData(pkgs, decoder.mFlagsOffsets == null
                     ? null
                     : decoder.mFlagsOffsets.toArray(new FlagsOffset[0]), resTable);
@@ -53,21 +87,44 @@ public class ARSCDecoder {
         }
     }
 
-    private ARSCDecoder(InputStream arscStream, ResTable resTable, boolean storeFlagsOffsets, boolean keepBroken) {
-        arscStream = mCountIn = new CountingInputStream(arscStream);
+    /**
+     * Rebuilds the packages of a table from a snapshot written by decode(). The snapshot
+     * is read from the buffer's current position.
+     */
+    public static ARSCData decodeSnapshot(ByteBuffer snapshotBuffer, boolean keepBroken, ResTable resTable)
+            throws AndrolibException {
+        try {
+            ARSCDecoder decoder = new ARSCDecoder(snapshotBuffer, resTable, false, keepBroken, null, true);
+            return new ARSCData(decoder.readSnapshot(), null, resTable);
+        } catch (IOException | RuntimeException ex) {
+            // a damaged snapshot may still break the decoder past the checks in its reader
+            throw new AndrolibException("Could not decode arsc snapshot", ex);
+        }
+    }
+
+    private ARSCDecoder(ByteBuffer arscBuffer, ResTable resTable, boolean storeFlagsOffsets, boolean keepBroken,
+                        OutputStream snapshotStream, boolean fromSnapshot) {
+        mBuffer = arscBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
         if (storeFlagsOffsets) {
             mFlagsOffsets = new ArrayList<FlagsOffset>();
         } else {
             mFlagsOffsets = null;
         }
-        mIn = new ExtDataInput(new LittleEndianDataInputStream(arscStream));
+        mIn = new ExtDataInput(new ByteBufferDataInput(mBuffer));
         mResTable = resTable;
         mKeepBroken = keepBroken;
+        mSnapshot = snapshotStream == null ? null : new LittleEndianDataOutputStream(
+                new BufferedOutputStream(snapshotStream));
+        mFromSnapshot = fromSnapshot;
+        mCompactValues = resTable.getCompactValues();
     }
 
     private ResPackage[] readTableHeader() throws IOException, AndrolibException {
         nextChunkCheckType(Header.TYPE_TABLE);
         int packageCount = mIn.readInt();
+        if (mSnapshot != null) {
+            mSnapshot.writeInt(packageCount);
+        }
 
         mTableStrings = StringBlock.read(mIn);
         ResPackage[] packages = new ResPackage[packageCount];
@@ -83,17 +140,6 @@ public class ARSCDecoder {
         checkChunkType(Header.TYPE_PACKAGE);
         int id = (byte) mIn.readInt();
 
-        if (id == 0) {
-            // This means we are dealing with a Library Package, we should just temporarily
-            // set the packageId to the next available id . This will be set at runtime regardless, but
-            // for Apktool's use we need a non-zero packageId.
-            // AOSP indicates 0x02 is next, as 0x01 is system and 0x7F is private.
-            id = 2;
-            if (mResTable.getPackageOriginal() == null && mResTable.getPackageRenamed() == null) {
-                mResTable.setSharedLibrary(true);
-            }
-        }
-
         String name = mIn.readNullEndedString(128, true);
         /* typeStrings */mIn.skipInt();
         /* lastPublicType */mIn.skipInt();
@@ -103,8 +149,14 @@ public class ARSCDecoder {
         mTypeNames = StringBlock.read(mIn);
         mSpecNames = StringBlock.read(mIn);
 
-        mResId = id << 24;
-        mPkg = new ResPackage(mResTable, id, name);
+        if (mSnapshot != null) {
+            mSnapshot.writeInt(id);
+            writeSnapshotString(name);
+        }
+        startPackage(id, name);
+        mLazyPackage = mResTable.getLazyLoading() && mSnapshot == null
+                ? new LazyPackage(this)
+                : null;
 
         nextChunk();
         while (mHeader.type == Header.TYPE_LIBRARY) {
@@ -115,9 +167,31 @@ public class ARSCDecoder {
             readTableTypeSpec();
         }
 
+        if (mLazyPackage != null && ! mLazyPackage.mChunks.isEmpty()) {
+            mPkg.setTypeLoader(mLazyPackage, mLazyPackage.mChunks.keySet());
+        }
+        if (mSnapshot != null) {
+            mSnapshot.writeByte(SNAPSHOT_END);
+        }
         return mPkg;
     }
 
+    private void startPackage(int id, String name) {
+        if (id == 0) {
+            // This means we are dealing with a Library Package, we should just temporarily
+            // set the packageId to the next available id . This will be set at runtime regardless, but
+            // for Apktool's use we need a non-zero packageId.
+            // AOSP indicates 0x02 is next, as 0x01 is system and 0x7F is private.
+            id = 2;
+            if (mResTable.getPackageOriginal() == null && mResTable.getPackageRenamed() == null) {
+                mResTable.setSharedLibrary(true);
+            }
+        }
+
+        mResId = id << 24;
+        mPkg = new ResPackage(mResTable, id, name);
+    }
+
     private void readLibraryType() throws AndrolibException, IOException {
         checkChunkType(Header.TYPE_LIBRARY);
         int libraryCount = mIn.readInt();
@@ -150,6 +224,10 @@ public class ARSCDecoder {
         }
 
         while (type == Header.TYPE_TYPE) {
+            if (mLazyPackage != null && skipTableType()) {
+                type = nextChunk().type;
+                continue;
+            }
             readTableType();
             type = nextChunk().type;
 
@@ -166,22 +244,49 @@ public class ARSCDecoder {
         int entryCount = mIn.readInt();
 
         if (mFlagsOffsets != null) {
-            mFlagsOffsets.add(new FlagsOffset(mCountIn.getCount(), entryCount));
+            mFlagsOffsets.add(new FlagsOffset(mBuffer.position(), entryCount));
         }
 
 		/* flags */mIn.skipBytes(entryCount * 4);
         mTypeSpec = new ResTypeSpec(mTypeNames.getString(id - 1), mResTable, mPkg, id, entryCount);
         mPkg.addType(mTypeSpec);
+
+        if (mSnapshot != null) {
+            mSnapshot.writeByte(SNAPSHOT_TYPE_SPEC);
+            mSnapshot.writeByte(id);
+            writeSnapshotString(mTypeSpec.getName());
+            mSnapshot.writeInt(entryCount);
+        }
         return mTypeSpec;
     }
 
+    /**
+     * Records the position of a type chunk so its entries can be decoded on first use.
+     * Returns false if the chunk has no known type spec and must be decoded right away.
+     */
+    private boolean skipTableType() {
+        if (! mBuffer.hasRemaining()) {
+            return false;
+        }
+        byte typeId = mBuffer.get(mBuffer.position());
+        if (! mLazyPackage.mTypeSpecs.containsKey(typeId)) {
+            return false;
+        }
+
+        List<Integer> chunks = mLazyPackage.mChunks.get(typeId);
+        if (chunks == null) {
+            chunks = new ArrayList<Integer>();
+            mLazyPackage.mChunks.put(typeId, chunks);
+        }
+        chunks.add(mHeader.startPosition);
+        mBuffer.position(Math.min(mHeader.endPosition, mBuffer.limit()));
+        return true;
+    }
+
     private ResType readTableType() throws IOException, AndrolibException {
         checkChunkType(Header.TYPE_TYPE);
         byte typeId = mIn.readByte();
-        if (mResTypeSpecs.containsKey(typeId)) {
-            mResId = (0xff000000 & mResId) | mResTypeSpecs.get(typeId).getId() << 16;
-            mTypeSpec = mResTypeSpecs.get(typeId);
-        }
+        selectTypeSpec(typeId);
 
         /* res0, res1 */mIn.skipBytes(3);
         int entryCount = mIn.readInt();
@@ -189,26 +294,34 @@ public class ARSCDecoder {
         mMissingResSpecs = new boolean[entryCount];
         Arrays.fill(mMissingResSpecs, true);
 
+        int configStart = mBuffer.position();
         ResConfigFlags flags = readConfigFlags();
+        int configEnd = mBuffer.position();
         int position = (mHeader.startPosition + entriesStart) - (entryCount * 4);
 
         // For some APKs there is a disconnect between the reported size of Configs
         // If we find a mismatch skip those bytes.
-        if (position != mCountIn.getCount()) {
-            mIn.skipBytes(position - mCountIn.getCount());
+        if (position > mBuffer.position()) {
+            mBuffer.position(position);
         }
         int[] entryOffsets = mIn.readIntArray(entryCount);
 
-        if (flags.isInvalid) {
-            String resName = mTypeSpec.getName() + flags.getQualifiers();
-            if (mKeepBroken) {
-                LOGGER.warning("Invalid config flags detected: " + resName);
-            } else {
-                LOGGER.warning("Invalid config flags detected. Dropping resources: " + resName);
+        if (mSnapshot != null) {
+            mSnapshot.writeByte(SNAPSHOT_TYPE);
+            mSnapshot.writeByte(typeId);
+            mSnapshot.writeInt(entryCount);
+            writeSnapshotBytes(configStart, configEnd);
+
+            int present = 0;
+            for (int offset : entryOffsets) {
+                if (offset != -1) {
+                    present++;
+                }
             }
+            mSnapshot.writeInt(present);
         }
 
-        mType = flags.isInvalid && !mKeepBroken ? null : mPkg.getOrCreateConfig(flags);
+        startType(flags);
 
         for (int i = 0; i < entryOffsets.length; i++) {
             if (entryOffsets[i] != -1) {
@@ -221,6 +334,26 @@ public class ARSCDecoder {
         return mType;
     }
 
+    private void selectTypeSpec(byte typeId) {
+        if (mResTypeSpecs.containsKey(typeId)) {
+            mResId = (0xff000000 & mResId) | mResTypeSpecs.get(typeId).getId() << 16;
+            mTypeSpec = mResTypeSpecs.get(typeId);
+        }
+    }
+
+    private void startType(ResConfigFlags flags) throws AndrolibException {
+        if (flags.isInvalid) {
+            String resName = mTypeSpec.getName() + flags.getQualifiers();
+            if (mKeepBroken) {
+                LOGGER.warning("Invalid config flags detected: " + resName);
+            } else {
+                LOGGER.warning("Invalid config flags detected. Dropping resources: " + resName);
+            }
+        }
+
+        mType = flags.isInvalid && !mKeepBroken ? null : mPkg.getOrCreateConfig(flags);
+    }
+
     private void readEntry() throws IOException, AndrolibException {
         short size = mIn.readShort();
         if (size < 0) {
@@ -229,34 +362,64 @@ public class ARSCDecoder {
         short flags = mIn.readShort();
         int specNamesId = mIn.readInt();
 
-        ResValue value = (flags & ENTRY_FLAG_COMPLEX) == 0 ? readValue() : readComplexEntry();
+        String name = mSpecNames.getString(specNamesId);
+        if (mSnapshot != null) {
+            mSnapshot.writeShort(mResId & 0xffff);
+            writeSnapshotString(name);
+            mSnapshot.writeShort(flags);
+        }
+        readEntryValue(name, flags);
+    }
 
+    private void readEntryValue(String name, short flags) throws IOException, AndrolibException {
+        if ((flags & ENTRY_FLAG_COMPLEX) != 0) {
+            addEntry(name, readComplexEntry());
+            return;
+        }
+
+        readRawValue();
+        if (mCompactValues && mType != null && ResValueFactory.isScalarType(mValueType)) {
+            ResResSpec spec = getEntrySpec(name);
+            addEntry(new ResResource(mType, spec, mType.addCompactValue(mValueType, mValueData)));
+            return;
+        }
+
+        ResValue value = newValue();
         if (mTypeSpec.isString() && value instanceof ResFileValue) {
             value = new ResStringValue(value.toString(), ((ResFileValue) value).getRawIntValue());
         }
+        addEntry(name, value);
+    }
+
+    private void addEntry(String name, ResValue value) throws AndrolibException {
         if (mType == null) {
             return;
         }
+        addEntry(new ResResource(mType, getEntrySpec(name), value));
+    }
 
-        ResID resId = new ResID(mResId);
+    private ResResSpec getEntrySpec(String name) throws AndrolibException {
         ResResSpec spec;
-        if (mPkg.hasResSpec(resId)) {
-            spec = mPkg.getResSpec(resId);
+        if (mPkg.hasResSpec(mResId)) {
+            spec = mPkg.getResSpec(mResId);
 
             if (spec.isDummyResSpec()) {
                 removeResSpec(spec);
 
-                spec = new ResResSpec(resId, mSpecNames.getString(specNamesId), mPkg, mTypeSpec);
+                spec = new ResResSpec(new ResID(mResId), name, mPkg, mTypeSpec);
                 mPkg.addResSpec(spec);
                 mTypeSpec.addResSpec(spec);
             }
         } else {
-            spec = new ResResSpec(resId, mSpecNames.getString(specNamesId), mPkg, mTypeSpec);
+            spec = new ResResSpec(new ResID(mResId), name, mPkg, mTypeSpec);
             mPkg.addResSpec(spec);
             mTypeSpec.addResSpec(spec);
         }
-        ResResource res = new ResResource(mType, spec, value);
+        return spec;
+    }
 
+    private void addEntry(ResResource res) throws AndrolibException {
+        ResResSpec spec = res.getResSpec();
         try {
             mType.addResource(res);
             spec.addResource(res);
@@ -275,6 +438,13 @@ public class ARSCDecoder {
     private ResBagValue readComplexEntry() throws IOException, AndrolibException {
         int parent = mIn.readInt();
         int count = mIn.readInt();
+        if (count < 0 || count > mBuffer.remaining() / 4) {
+            throw new IOException("Invalid bag item count: " + count);
+        }
+        if (mSnapshot != null) {
+            mSnapshot.writeInt(parent);
+            mSnapshot.writeInt(count);
+        }
 
         ResValueFactory factory = mPkg.getValueFactory();
         Duo<Integer, ResScalarValue>[] items = new Duo[count];
@@ -283,6 +453,9 @@ public class ARSCDecoder {
 
         for (int i = 0; i < count; i++) {
             resId = mIn.readInt();
+            if (mSnapshot != null) {
+                mSnapshot.writeInt(resId);
+            }
             resValue = readValue();
 
             if (resValue instanceof ResScalarValue) {
@@ -297,14 +470,38 @@ public class ARSCDecoder {
     }
 
     private ResIntBasedValue readValue() throws IOException, AndrolibException {
+        readRawValue();
+        return newValue();
+    }
+
+    /**
+     * Reads the type and data of a value into mValueType and mValueData.
+     */
+    private void readRawValue() throws IOException, AndrolibException {
 		/* size */mIn.skipCheckShort((short) 8);
 		/* zero */mIn.skipCheckByte((byte) 0);
-        byte type = mIn.readByte();
-        int data = mIn.readInt();
+        mValueType = mIn.readByte();
+        mValueData = mIn.readInt();
+
+        if (mSnapshot != null) {
+            mSnapshot.writeShort(8);
+            mSnapshot.writeByte(0);
+            mSnapshot.writeByte(mValueType);
+            mSnapshot.writeInt(mValueData);
+        }
+    }
 
-        return type == TypedValue.TYPE_STRING
-                ? mPkg.getValueFactory().factory(mTableStrings.getHTML(data), data)
-                : mPkg.getValueFactory().factory(type, data, null);
+    private ResIntBasedValue newValue() throws IOException, AndrolibException {
+        if (mValueType != TypedValue.TYPE_STRING) {
+            return mPkg.getValueFactory().factory(mValueType, mValueData, null);
+        }
+
+        // snapshots carry the decoded string right after the value
+        String value = mFromSnapshot ? readSnapshotString() : mTableStrings.getHTML(mValueData);
+        if (mSnapshot != null) {
+            writeSnapshotString(value);
+        }
+        return mPkg.getValueFactory().factory(value, mValueData);
     }
 
     private ResConfigFlags readConfigFlags() throws IOException, AndrolibException {
@@ -314,6 +511,9 @@ public class ARSCDecoder {
         if (size < 28) {
             throw new AndrolibException("Config size < 28");
         }
+        if (size - 4 > mBuffer.remaining()) {
+            throw new IOException("Config size exceeds data: " + size);
+        }
 
         boolean isInvalid = false;
 
@@ -433,6 +633,9 @@ public class ARSCDecoder {
 
     private void addTypeSpec(ResTypeSpec resTypeSpec) {
         mResTypeSpecs.put(resTypeSpec.getId(), resTypeSpec);
+        if (mLazyPackage != null) {
+            mLazyPackage.mTypeSpecs.put(resTypeSpec.getId(), resTypeSpec);
+        }
     }
 
     private void addMissingResSpecs() throws AndrolibException {
@@ -443,15 +646,14 @@ public class ARSCDecoder {
                 continue;
             }
 
-            ResResSpec spec = new ResResSpec(new ResID(resId | i), "APKTOOL_DUMMY_" + Integer.toHexString(i), mPkg, mTypeSpec);
-
             // If we already have this resID dont add it again.
-            if (! mPkg.hasResSpec(new ResID(resId | i))) {
+            if (! mPkg.hasResSpec(resId | i)) {
+                ResResSpec spec = new ResResSpec(new ResID(resId | i), "APKTOOL_DUMMY_" + Integer.toHexString(i), mPkg, mTypeSpec);
                 mPkg.addResSpec(spec);
                 mTypeSpec.addResSpec(spec);
 
                 if (mType == null) {
-                    mType = mPkg.getOrCreateConfig(new ResConfigFlags());
+                    mType = mPkg.getOrCreateConfig(ResConfigFlags.DEFAULT);
                 }
 
                 ResValue value = new ResBoolValue(false, 0, null);
@@ -464,6 +666,120 @@ public class ARSCDecoder {
         }
     }
 
+    /**
+     * Snapshot layout, little-endian: the package count, then for each package its id and
+     * name followed by type spec and type records up to SNAPSHOT_END. A type record holds
+     * the type id, entry count, the config as stored in the table and the present entries.
+     * Entry values keep their table encoding, with string values inlined after them.
+     */
+    private ResPackage[] readSnapshot() throws IOException, AndrolibException {
+        int packageCount = readSnapshotCount(9);
+        ResPackage[] packages = new ResPackage[packageCount];
+
+        for (int i = 0; i < packageCount; i++) {
+            startPackage(mIn.readInt(), readSnapshotString());
+
+            byte record;
+            while ((record = mIn.readByte()) != SNAPSHOT_END) {
+                switch (record) {
+                    case SNAPSHOT_TYPE_SPEC:
+                        byte id = mIn.readByte();
+                        String name = readSnapshotString();
+                        mTypeSpec = new ResTypeSpec(name, mResTable, mPkg, id, readSnapshotEntryCount());
+                        mPkg.addType(mTypeSpec);
+                        addTypeSpec(mTypeSpec);
+                        break;
+                    case SNAPSHOT_TYPE:
+                        readSnapshotType();
+                        break;
+                    default:
+                        throw new AndrolibException("Invalid snapshot record: " + record);
+                }
+            }
+            packages[i] = mPkg;
+        }
+        return packages;
+    }
+
+    private void readSnapshotType() throws IOException, AndrolibException {
+        byte typeId = mIn.readByte();
+        if (! mResTypeSpecs.containsKey(typeId)) {
+            throw new AndrolibException("Invalid snapshot type id: " + typeId);
+        }
+        selectTypeSpec(typeId);
+
+        int entryCount = readSnapshotEntryCount();
+        mMissingResSpecs = new boolean[entryCount];
+        Arrays.fill(mMissingResSpecs, true);
+
+        startType(readConfigFlags());
+
+        int present = readSnapshotCount(8);
+        for (int i = 0; i < present; i++) {
+            int index = mIn.readUnsignedShort();
+            if (index >= entryCount) {
+                throw new AndrolibException("Invalid snapshot entry index: " + index);
+            }
+            mMissingResSpecs[index] = false;
+            mResId = (mResId & 0xffff0000) | index;
+
+            String name = readSnapshotString();
+            readEntryValue(name, mIn.readShort());
+        }
+        addMissingResSpecs();
+    }
+
+    private String readSnapshotString() throws IOException {
+        int length = mIn.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > mBuffer.remaining()) {
+            throw new IOException("Invalid snapshot string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the count of a list whose records take at least recordSize bytes each, so a
+     * damaged snapshot fails here rather than allocating for records that are not there.
+     */
+    private int readSnapshotCount(int recordSize) throws IOException {
+        int count = mIn.readInt();
+        if (count < 0 || count > mBuffer.remaining() / recordSize) {
+            throw new IOException("Invalid snapshot count: " + count);
+        }
+        return count;
+    }
+
+    private int readSnapshotEntryCount() throws IOException {
+        int count = mIn.readInt();
+        if (count < 0 || count > 0x10000) {
+            throw new IOException("Invalid snapshot entry count: " + count);
+        }
+        return count;
+    }
+
+    private void writeSnapshotString(String value) throws IOException {
+        if (value == null) {
+            mSnapshot.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mSnapshot.writeInt(bytes.length);
+        mSnapshot.write(bytes);
+    }
+
+    private void writeSnapshotBytes(int start, int end) throws IOException {
+        ByteBuffer bytes = mBuffer.duplicate();
+        bytes.limit(end).position(start);
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        mSnapshot.write(copy);
+    }
+
     private void removeResSpec(ResResSpec spec) throws AndrolibException {
         if (mPkg.hasResSpec(spec.getId())) {
             mPkg.removeResSpec(spec);
@@ -472,7 +788,7 @@ public class ARSCDecoder {
     }
 
     private Header nextChunk() throws IOException {
-        return mHeader = Header.read(mIn, mCountIn);
+        return mHeader = Header.read(mIn, mBuffer.position());
     }
 
     private void checkChunkType(int expectedType) throws AndrolibException {
@@ -489,9 +805,12 @@ public class ARSCDecoder {
 
     private final ExtDataInput mIn;
     private final ResTable mResTable;
-    private final CountingInputStream mCountIn;
+    private final ByteBuffer mBuffer;
     private final List<FlagsOffset> mFlagsOffsets;
     private final boolean mKeepBroken;
+    private final LittleEndianDataOutputStream mSnapshot;
+    private final boolean mFromSnapshot;
+    private final boolean mCompactValues;
 
     private Header mHeader;
     private StringBlock mTableStrings;
@@ -503,9 +822,66 @@ public class ARSCDecoder {
     private int mResId;
     private boolean[] mMissingResSpecs;
     private HashMap<Byte, ResTypeSpec> mResTypeSpecs = new HashMap<>();
+    private LazyPackage mLazyPackage;
+    private byte mValueType;
+    private int mValueData;
 
     private final static short ENTRY_FLAG_COMPLEX = 0x0001;
 
+    public final static int SNAPSHOT_VERSION = 1;
+    private final static byte SNAPSHOT_END = 0, SNAPSHOT_TYPE_SPEC = 1, SNAPSHOT_TYPE = 2;
+
+    /**
+     * Type chunks of a package that were skipped on the first pass. The buffer stays
+     * reachable through the package until every type has been loaded. Each load runs on a
+     * decoder of its own, so loads never share read state with each other or with the
+     * decoder that skipped the chunks.
+     */
+    private static class LazyPackage implements ResTypeLoader {
+        public LazyPackage(ARSCDecoder decoder) {
+            mBuffer = decoder.mBuffer.duplicate();
+            mResTable = decoder.mResTable;
+            mKeepBroken = decoder.mKeepBroken;
+            mTableStrings = decoder.mTableStrings;
+            mTypeNames = decoder.mTypeNames;
+            mSpecNames = decoder.mSpecNames;
+        }
+
+        @Override
+        public void loadType(ResPackage pkg, byte typeId) throws AndrolibException {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(0);
+            ARSCDecoder decoder = new ARSCDecoder(buffer, mResTable, false, mKeepBroken, null, false);
+            decoder.mTableStrings = mTableStrings;
+            decoder.mTypeNames = mTypeNames;
+            decoder.mSpecNames = mSpecNames;
+            decoder.mPkg = pkg;
+            decoder.mTypeSpec = mTypeSpecs.get(typeId);
+            decoder.mResTypeSpecs.put(typeId, decoder.mTypeSpec);
+            decoder.mResId = pkg.getId() << 24;
+
+            try {
+                for (int position : mChunks.get(typeId)) {
+                    decoder.mBuffer.position(position);
+                    decoder.nextChunkCheckType(Header.TYPE_TYPE);
+                    decoder.readTableType();
+                    decoder.addMissingResSpecs();
+                }
+            } catch (IOException ex) {
+                throw new AndrolibException("Could not decode arsc file", ex);
+            }
+        }
+
+        private final ByteBuffer mBuffer;
+        private final ResTable mResTable;
+        private final boolean mKeepBroken;
+        private final StringBlock mTableStrings;
+        private final StringBlock mTypeNames;
+        private final StringBlock mSpecNames;
+        private final Map<Byte, ResTypeSpec> mTypeSpecs = new HashMap<Byte, ResTypeSpec>();
+        private final Map<Byte, List<Integer>> mChunks = new LinkedHashMap<Byte, List<Integer>>();
+    }
+
     public static class Header {
         public final short type;
         public final int headerSize;
@@ -521,13 +897,12 @@ public class ARSCDecoder {
             this.endPosition = headerStart + chunkSize;
         }
 
-        public static Header read(ExtDataInput in, CountingInputStream countIn) throws IOException {
+        public static Header read(ExtDataInput in, int start) throws IOException {
             short type;
-            int start = countIn.getCount();
             try {
                 type = in.readShort();
             } catch (EOFException ex) {
-                return new Header(TYPE_NONE, 0, 0, countIn.getCount());
+                return new Header(TYPE_NONE, 0, 0, start);
             }
             return new Header(type, in.readShort(), in.readInt(), start);
         }
@@ -578,7 +953,7 @@ public class ARSCDecoder {
             return mPackages[0];
         }
 
-        public int findPackageWithMostResSpecs() {
+        public int findPackageWithMostResSpecs() throws AndrolibException {
             int count = mPackages[0].getResSpecCount();
             int id = 0;
 
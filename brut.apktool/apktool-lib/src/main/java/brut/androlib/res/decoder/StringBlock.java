@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.*;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,6 +58,7 @@ public class StringBlock {
         block.m_stringOffsets = reader.readIntArray(stringCount);
         block.m_stringOwns = new int[stringCount];
         Arrays.fill(block.m_stringOwns, -1);
+        block.m_stringCache = new String[stringCount];
 
         if (styleCount != 0) {
             block.m_styleOffsets = reader.readIntArray(styleCount);
@@ -90,24 +93,18 @@ public class StringBlock {
 
     /**
      * Returns raw string (without any styling information) at specified index.
+     * Each string is decoded once and then kept by the block; threads racing on the same
+     * index just decode it twice.
      */
     public String getString(int index) {
         if (index < 0 || m_stringOffsets == null || index >= m_stringOffsets.length) {
             return null;
         }
-        int offset = m_stringOffsets[index];
-        int length;
-
-        if (m_isUTF8) {
-            int[] val = getUtf8(m_strings, offset);
-            offset = val[0];
-            length = val[1];
-        } else {
-            int[] val = getUtf16(m_strings, offset);
-            offset += val[0];
-            length = val[1];
+        String string = m_stringCache[index];
+        if (string == null) {
+            string = m_stringCache[index] = decodeString(index);
         }
-        return decodeString(offset, length);
+        return string;
     }
 
     /**
@@ -215,30 +212,19 @@ public class StringBlock {
     }
 
     /**
-     * Finds index of the string. Returns -1 if the string was not found.
+     * Finds index of the string. Returns -1 if the string was not found. Works for UTF-8
+     * and UTF-16 blocks; the index is built on the first call.
      */
     public int find(String string) {
-        if (string == null) {
+        if (string == null || m_stringOffsets == null) {
             return -1;
         }
-        for (int i = 0; i != m_stringOffsets.length; ++i) {
-            int offset = m_stringOffsets[i];
-            int length = getShort(m_strings, offset);
-            if (length != string.length()) {
-                continue;
-            }
-            int j = 0;
-            for (; j != length; ++j) {
-                offset += 2;
-                if (string.charAt(j) != getShort(m_strings, offset)) {
-                    break;
-                }
-            }
-            if (j == length) {
-                return i;
-            }
+        Map<String, Integer> index = m_stringIndex;
+        if (index == null) {
+            index = buildStringIndex();
         }
-        return -1;
+        Integer found = index.get(string);
+        return found == null ? -1 : found;
     }
 
     private StringBlock() {
@@ -277,13 +263,53 @@ public class StringBlock {
         return style;
     }
 
-    private String decodeString(int offset, int length) {
-        try {
-            return (m_isUTF8 ? UTF8_DECODER : UTF16LE_DECODER).decode(
-                    ByteBuffer.wrap(m_strings, offset, length)).toString();
-        } catch (CharacterCodingException ex) {
-            LOGGER.log(Level.WARNING, null, ex);
-            return null;
+    private synchronized Map<String, Integer> buildStringIndex() {
+        if (m_stringIndex == null) {
+            Map<String, Integer> index = new HashMap<String, Integer>(m_stringOffsets.length * 2);
+            // keep the first of duplicated strings, like the scan this replaces
+            for (int i = m_stringOffsets.length - 1; i >= 0; i--) {
+                String string = getString(i);
+                if (string != null) {
+                    index.put(string, i);
+                }
+            }
+            m_stringIndex = index;
+        }
+        return m_stringIndex;
+    }
+
+    private String decodeString(int index) {
+        int offset = m_stringOffsets[index];
+        int length;
+
+        if (m_isUTF8) {
+            // skip the lengths in chars and in bytes, then trust the terminating zero
+            offset += (m_strings[offset] & 0x80) != 0 ? 2 : 1;
+            offset += (m_strings[offset] & 0x80) != 0 ? 2 : 1;
+            length = 0;
+            while (m_strings[offset + length] != 0) {
+                length++;
+            }
+        } else {
+            int val = getShort(m_strings, offset);
+            if ((val & 0x8000) != 0) {
+                length = ((val & 0x7fff) << 16 | getShort(m_strings, offset + 2)) * 2;
+                offset += 4;
+            } else {
+                length = val * 2;
+                offset += 2;
+            }
+        }
+
+        // decoders are stateful, blocks may be read from several threads
+        CharsetDecoder decoder = m_isUTF8 ? UTF8_DECODER : UTF16LE_DECODER;
+        synchronized (decoder) {
+            try {
+                return decoder.decode(ByteBuffer.wrap(m_strings, offset, length)).toString();
+            } catch (CharacterCodingException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+                return null;
+            }
         }
     }
 
@@ -300,45 +326,14 @@ public class StringBlock {
         }
     }
 
-    private static final int[] getUtf8(byte[] array, int offset) {
-        int val = array[offset];
-        int length;
-
-        if ((val & 0x80) != 0) {
-            offset += 2;
-        } else {
-            offset += 1;
-        }
-        val = array[offset];
-        if ((val & 0x80) != 0) {
-            offset += 2;
-        } else {
-            offset += 1;
-        }
-        length = 0;
-        while (array[offset + length] != 0) {
-            length++;
-        }
-        return new int[] { offset, length};
-    }
-
-    private static final int[] getUtf16(byte[] array, int offset) {
-        int val = ((array[offset + 1] & 0xFF) << 8 | array[offset] & 0xFF);
-
-        if (val == 0x8000) {
-            int high = (array[offset + 3] & 0xFF) << 8;
-            int low = (array[offset + 2] & 0xFF);
-            return new int[] {4, (high + low) * 2};
-        }
-        return new int[] {2, val * 2};
-    }
-
     private int[] m_stringOffsets;
     private byte[] m_strings;
     private int[] m_styleOffsets;
     private int[] m_styles;
     private boolean m_isUTF8;
     private int[] m_stringOwns;
+    private String[] m_stringCache;
+    private volatile Map<String, Integer> m_stringIndex;
 
     private final CharsetDecoder UTF16LE_DECODER = Charset.forName("UTF-16LE").newDecoder();
     private final CharsetDecoder UTF8_DECODER = Charset.forName("UTF-8").newDecoder();
@@ -18,16 +18,26 @@ package brut.androlib.src;
 
 import brut.androlib.AndrolibException;
 import brut.androlib.mod.SmaliMod;
+import brut.androlib.mod.SmaliMod.ParsedSmaliFile;
 import brut.androlib.res.util.ExtFile;
 import brut.directory.DirectoryException;
+import brut.util.Duo;
+import brut.util.TaskRunner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import java.io.*;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import org.antlr.runtime.RecognitionException;
 import org.apache.commons.io.IOUtils;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
 
 /**
  * @author Ryszard Wiśniewski <brut.alll@gmail.com>
@@ -35,20 +45,48 @@ import org.jf.dexlib2.writer.io.FileDataStore;
 public class SmaliBuilder {
 
     public static void build(ExtFile smaliDir, File dexFile) throws AndrolibException {
-        new SmaliBuilder(smaliDir, dexFile).build();
+        build(smaliDir, dexFile, 1);
     }
 
-    private SmaliBuilder(ExtFile smaliDir, File dexFile) {
+    /**
+     * @param jobs number of threads lexing and parsing smali files. The parsed files are
+     *             still added to the dex in directory order from the calling thread.
+     */
+    public static void build(ExtFile smaliDir, File dexFile, int jobs) throws AndrolibException {
+        new SmaliBuilder(smaliDir, dexFile, jobs, null).build();
+    }
+
+    /**
+     * Like {@link #build(ExtFile, File, int)}, but every smali file is assembled into its own
+     * dex fragment in cacheDir, named by the SHA-1 of the file. Unchanged files reuse their
+     * fragment, so only changed files are parsed again; the fragments are then merged into
+     * the final dex. Fragments no longer used by the folder are deleted.
+     */
+    public static void build(ExtFile smaliDir, File dexFile, int jobs, File cacheDir) throws AndrolibException {
+        new SmaliBuilder(smaliDir, dexFile, jobs, cacheDir).build();
+    }
+
+    private SmaliBuilder(ExtFile smaliDir, File dexFile, int jobs, File cacheDir) {
         mSmaliDir = smaliDir;
         mDexFile = dexFile;
+        mJobs = jobs;
+        mCacheDir = cacheDir;
     }
 
     private void build() throws AndrolibException {
+        if (mCacheDir != null) {
+            buildCached();
+            return;
+        }
         try {
             DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
 
-            for (String fileName : mSmaliDir.getDirectory().getFiles(true)) {
-                buildFile(fileName, dexBuilder);
+            if (mJobs > 1) {
+                buildParallel(mSmaliDir.getDirectory().getFiles(true), dexBuilder);
+            } else {
+                for (String fileName : mSmaliDir.getDirectory().getFiles(true)) {
+                    buildFile(fileName, dexBuilder);
+                }
             }
             dexBuilder.writeTo(new FileDataStore( new File(mDexFile.getAbsolutePath())));
         } catch (IOException | DirectoryException ex) {
@@ -75,8 +113,198 @@ public class SmaliBuilder {
         inStream.close();
     }
 
+    private void buildParallel(Collection<String> fileNames, DexBuilder dexBuilder) throws AndrolibException {
+        ExecutorService executor = TaskRunner.newExecutor(mJobs, "smali-parse");
+
+        // only a window of files is parsed ahead of the builder, to bound the number of trees in memory
+        Deque<Duo<String, Future<ParsedSmaliFile>>> pending = new ArrayDeque<>();
+        Iterator<String> it = fileNames.iterator();
+        try {
+            while (it.hasNext() || ! pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < mJobs * PARSE_AHEAD_PER_JOB) {
+                    String fileName = it.next();
+                    pending.add(new Duo<>(fileName, fileName.endsWith(".smali")
+                            ? executor.submit(new ParseTask(new File(mSmaliDir, fileName))) : null));
+                }
+
+                Duo<String, Future<ParsedSmaliFile>> next = pending.poll();
+                if (next.m2 == null) {
+                    LOGGER.warning("Unknown file type, ignoring: " + new File(mSmaliDir, next.m1));
+                    continue;
+                }
+
+                ParsedSmaliFile parsed = getResult(next.m2);
+                if (parsed == null || !SmaliMod.assembleSmaliFile(parsed, dexBuilder, false)) {
+                    throw new AndrolibException("Could not smali file: " + next.m1);
+                }
+            }
+        } catch (RecognitionException ex) {
+            throw new AndrolibException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void buildCached() throws AndrolibException {
+        if (! mCacheDir.mkdirs() && ! mCacheDir.isDirectory()) {
+            throw new AndrolibException("Could not create directory: " + mCacheDir);
+        }
+
+        ExecutorService executor = TaskRunner.newExecutor(mJobs, "smali-fragment");
+        Set<String> fragmentNames = new HashSet<>();
+        Deque<Duo<String, Future<Fragment>>> pending = new ArrayDeque<>();
+        int total = 0;
+        int assembled = 0;
+        try {
+            // fragments are loaded ahead within a window and merged in directory order
+            DexPool dexPool = DexPool.makeDexPool();
+            Iterator<String> it = mSmaliDir.getDirectory().getFiles(true).iterator();
+            while (it.hasNext() || ! pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < Math.max(1, mJobs) * PARSE_AHEAD_PER_JOB) {
+                    String fileName = it.next();
+                    pending.add(new Duo<>(fileName, fileName.endsWith(".smali")
+                            ? executor.submit(new FragmentTask(new File(mSmaliDir, fileName))) : null));
+                }
+
+                Duo<String, Future<Fragment>> next = pending.poll();
+                if (next.m2 == null) {
+                    LOGGER.warning("Unknown file type, ignoring: " + new File(mSmaliDir, next.m1));
+                    continue;
+                }
+
+                Fragment fragment = getResult(next.m2);
+                if (fragment.dexFile == null) {
+                    throw new AndrolibException("Could not smali file: " + next.m1);
+                }
+                fragmentNames.add(fragment.file.getName());
+                total++;
+                if (fragment.assembled) {
+                    assembled++;
+                }
+                for (ClassDef classDef : fragment.dexFile.getClasses()) {
+                    dexPool.internClass(classDef);
+                }
+            }
+            dexPool.writeTo(new FileDataStore(new File(mDexFile.getAbsolutePath())));
+            LOGGER.fine(String.format("Assembled %d of %d smali files, reused the rest", assembled, total));
+        } catch (IOException | DirectoryException ex) {
+            throw new AndrolibException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        File[] fragments = mCacheDir.listFiles();
+        if (fragments != null) {
+            long staleTime = System.currentTimeMillis() - TMP_FRAGMENT_MAX_AGE;
+            for (File fragment : fragments) {
+                if (fragmentNames.contains(fragment.getName())) {
+                    continue;
+                }
+                // a recent temp file may still be written by a concurrent build
+                if (fragment.getName().endsWith(".tmp") && fragment.lastModified() > staleTime) {
+                    continue;
+                }
+                fragment.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for a parse-ahead task, rethrowing its exception as it was thrown where possible.
+     */
+    private static <T> T getResult(Future<T> future) throws AndrolibException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof AndrolibException) {
+                throw (AndrolibException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AndrolibException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AndrolibException(ex);
+        }
+    }
+
+    private static class Fragment {
+        File file;
+        DexFile dexFile;
+        boolean assembled;
+    }
+
+    /**
+     * Loads the cached fragment of a smali file, assembling it first if it is not cached
+     * yet. The dex is left null if the smali file has errors.
+     */
+    private class FragmentTask implements Callable<Fragment> {
+        private final File mFile;
+
+        FragmentTask(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public Fragment call() throws IOException, RecognitionException {
+            Fragment fragment = new Fragment();
+            String hash = Files.hash(mFile, Hashing.sha1()).toString();
+            fragment.file = new File(mCacheDir, FRAGMENT_VERSION + "-" + hash + ".dex");
+
+            if (! fragment.file.isFile()) {
+                ParsedSmaliFile parsed = SmaliMod.parseSmaliFile(mFile, false, false);
+                DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
+                if (parsed == null || ! SmaliMod.assembleSmaliFile(parsed, dexBuilder, false)) {
+                    return fragment;
+                }
+
+                // written to a unique file and renamed, so neither a killed build nor a concurrent
+                // one assembling the same file ever leaves a broken fragment
+                File tmpFile = File.createTempFile("fragment", ".tmp", mCacheDir);
+                try {
+                    dexBuilder.writeTo(new FileDataStore(tmpFile));
+                    if (! tmpFile.renameTo(fragment.file) && ! fragment.file.isFile()) {
+                        throw new IOException("Could not write " + fragment.file);
+                    }
+                } finally {
+                    tmpFile.delete();
+                }
+                fragment.assembled = true;
+            }
+            fragment.dexFile = DexFileFactory.loadDexFile(fragment.file, "classes.dex", FRAGMENT_API_LEVEL, false);
+            return fragment;
+        }
+    }
+
+    private static class ParseTask implements Callable<ParsedSmaliFile> {
+        private final File mFile;
+
+        ParseTask(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public ParsedSmaliFile call() throws IOException, RecognitionException {
+            return SmaliMod.parseSmaliFile(mFile, false, false);
+        }
+    }
+
     private final ExtFile mSmaliDir;
     private final File mDexFile;
+    private final int mJobs;
+    private final File mCacheDir;
+
+    private final static int PARSE_AHEAD_PER_JOB = 4;
+    private final static int FRAGMENT_VERSION = 1;
+    private final static long TMP_FRAGMENT_MAX_AGE = 60 * 60 * 1000;
+
+    // smaliTreeWalker assembles for api 15 unless told otherwise, fragments are read back the same way
+    private final static int FRAGMENT_API_LEVEL = 15;
 
     private final static Logger LOGGER = Logger.getLogger(SmaliBuilder.class.getName());
 }
@@ -17,6 +17,8 @@
 package brut.androlib.src;
 
 import brut.androlib.AndrolibException;
+import brut.common.BrutException;
+import brut.util.OS;
 import org.jf.baksmali.baksmali;
 import org.jf.baksmali.baksmaliOptions;
 import org.jf.dexlib2.DexFileFactory;
@@ -24,8 +26,12 @@ import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
 import org.jf.dexlib2.analysis.InlineMethodResolver;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * @author Ryszard Wiśniewski <brut.alll@gmail.com>
@@ -34,18 +40,107 @@ public class SmaliDecoder {
 
     public static void decode(File apkFile, File outDir, String dexName, boolean bakdeb, int api)
             throws AndrolibException {
-        new SmaliDecoder(apkFile, outDir, dexName, bakdeb, api).decode();
+        decode(apkFile, outDir, dexName, bakdeb, api, -1);
     }
 
-    private SmaliDecoder(File apkFile, File outDir, String dexName, boolean bakdeb, int api) {
-        mApkFile = apkFile;
-        mOutDir  = outDir;
-        mDexFile = dexName;
-        mBakDeb  = bakdeb;
-        mApi     = api;
+    /**
+     * @param jobs number of baksmali threads for this dex file, or -1 to pick
+     *             it from the available processors (at most 6)
+     */
+    public static void decode(File apkFile, File outDir, String dexName, boolean bakdeb, int api, int jobs)
+            throws AndrolibException {
+        decode(apkFile, outDir, dexName, bakdeb, api, jobs, null);
+    }
+
+    /**
+     * @param cacheDir directory keeping the smali of dex files decoded before, keyed by the
+     *                 SHA-1 signature of the dex, the api level and the debug info switch.
+     *                 A dex found there is copied instead of being disassembled. May be null.
+     */
+    public static void decode(File apkFile, File outDir, String dexName, boolean bakdeb, int api, int jobs,
+                              File cacheDir) throws AndrolibException {
+        new SmaliDecoder(apkFile, outDir, dexName, bakdeb, api, jobs, cacheDir).decode();
+    }
+
+    private SmaliDecoder(File apkFile, File outDir, String dexName, boolean bakdeb, int api, int jobs,
+                         File cacheDir) {
+        mApkFile  = apkFile;
+        mOutDir   = outDir;
+        mDexFile  = dexName;
+        mBakDeb   = bakdeb;
+        mApi      = api;
+        mJobs     = jobs;
+        mCacheDir = cacheDir;
     }
 
     private void decode() throws AndrolibException {
+        String key = mCacheDir == null ? null : getCacheKey();
+        if (key == null) {
+            disassemble();
+            return;
+        }
+
+        File cached = new File(mCacheDir, key);
+        try {
+            if (new File(cached, COMPLETE_MARKER).isFile()) {
+                LOGGER.info("Copying cached smali of " + mDexFile + "...");
+                OS.cpdir(cached, mOutDir);
+                new File(mOutDir, COMPLETE_MARKER).delete();
+                return;
+            }
+            if (cached.exists()) {
+                LOGGER.warning("Ignoring incomplete smali cache of " + mDexFile);
+                OS.rmdir(cached);
+            }
+
+            disassemble();
+
+            // copied aside, marked and renamed, so concurrent decodes never see a partial entry
+            mCacheDir.mkdirs();
+            File tmpDir = new File(mCacheDir, key + ".tmp-" + Thread.currentThread().getId()
+                    + "-" + System.nanoTime());
+            OS.cpdir(mOutDir, tmpDir);
+            if (! new File(tmpDir, COMPLETE_MARKER).createNewFile() || ! tmpDir.renameTo(cached)) {
+                OS.rmdir(tmpDir);
+            }
+        } catch (BrutException | IOException ex) {
+            throw new AndrolibException(ex);
+        }
+    }
+
+    /**
+     * Returns the cache key of the dex file, or null if its header can't be read or it is
+     * not a plain dex file.
+     */
+    private String getCacheKey() {
+        try (ZipFile zipFile = new ZipFile(mApkFile)) {
+            ZipEntry entry = zipFile.getEntry(mDexFile);
+            if (entry == null) {
+                return null;
+            }
+
+            byte[] header = new byte[DEX_SIGNATURE_OFFSET + DEX_SIGNATURE_SIZE];
+            try (DataInputStream in = new DataInputStream(zipFile.getInputStream(entry))) {
+                in.readFully(header);
+            }
+            if (header[0] != 'd' || header[1] != 'e' || header[2] != 'x') {
+                return null;
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (int i = DEX_SIGNATURE_OFFSET; i < header.length; i++) {
+                key.append(String.format("%02x", header[i] & 0xff));
+            }
+            return key.append("-api").append(mApi).append(mBakDeb ? "-debug" : "")
+                    .append("-v").append(CACHE_VERSION).toString();
+        } catch (IOException ex) {
+            LOGGER.warning("Could not read the header of " + mDexFile + ", not using the smali cache: "
+                    + ex.getMessage());
+            return null;
+        }
+    }
+
+    private void disassemble() throws AndrolibException {
         try {
             baksmaliOptions options = new baksmaliOptions();
 
@@ -64,10 +159,14 @@ public class SmaliDecoder {
             options.inlineResolver = null;
             options.checkPackagePrivateAccess = false;
 
-            // set jobs automatically
-            options.jobs = Runtime.getRuntime().availableProcessors();
-            if (options.jobs > 6) {
-                options.jobs = 6;
+            // set jobs automatically, unless the caller shares a thread budget across dex files
+            if (mJobs > 0) {
+                options.jobs = mJobs;
+            } else {
+                options.jobs = Runtime.getRuntime().availableProcessors();
+                if (options.jobs > 6) {
+                    options.jobs = 6;
+                }
             }
 
             // create the dex
@@ -93,4 +192,16 @@ public class SmaliDecoder {
     private final String mDexFile;
     private final boolean mBakDeb;
     private final int mApi;
+    private final int mJobs;
+    private final File mCacheDir;
+
+    // bump whenever the baksmali version or options change the output
+    private final static int CACHE_VERSION = 1;
+    private final static int DEX_SIGNATURE_OFFSET = 12;
+    private final static int DEX_SIGNATURE_SIZE = 20;
+
+    // written last into a cache entry, entries without it are left over from a failed decode
+    final static String COMPLETE_MARKER = ".complete";
+
+    private final static Logger LOGGER = Logger.getLogger(SmaliDecoder.class.getName());
 }
@@ -0,0 +1,163 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.data.ResTypeSpec;
+import brut.androlib.res.decoder.ARSCDecoder;
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.directory.ZipRODirectory;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+public class ARSCDecoderTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        TestUtils.copyResourceDir(ARSCDecoderTest.class, "brut/apktool/issue767/", sTmpDir);
+        sApk = new ExtFile(sTmpDir, "issue767.apk");
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void streamAndMappedTablesMatchTest() throws BrutException, IOException {
+        ResPackage[] streamed;
+        try (ZipFile zip = new ZipFile(sApk);
+             InputStream in = zip.getInputStream(zip.getEntry("resources.arsc"))) {
+            streamed = ARSCDecoder.decode(in, false, true, new ResTable()).getPackages();
+        }
+
+        ByteBuffer mapped = ((ZipRODirectory) sApk.getDirectory()).mapStoredFile("resources.arsc");
+        assertNotNull(mapped);
+        assertTrue(mapped.isDirect());
+        ResPackage[] decoded = ARSCDecoder.decode(mapped, false, true, new ResTable()).getPackages();
+
+        assertTrue(streamed.length > 0);
+        assertEquals(TestUtils.dumpPackages(streamed), TestUtils.dumpPackages(decoded));
+    }
+
+    @Test
+    public void lazyAndEagerTablesMatchTest() throws BrutException, IOException {
+        ResPackage[] eager = decode(false);
+        assertEquals(TestUtils.dumpPackages(eager), TestUtils.dumpPackages(decode(true)));
+    }
+
+    @Test
+    public void concurrentLazyLoadsMatchEagerTableTest() throws Exception {
+        ResPackage[] eager = decode(false);
+        final ResPackage[] lazy = decode(true);
+
+        // load one type per thread, out of table order, before anything else touches them
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < eager.length; i++) {
+            final ResPackage pkg = lazy[i];
+            for (final ResTypeSpec type : eager[i].listTypes()) {
+                final int resId = (pkg.getId() << 24) | (type.getId() << 16);
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            pkg.hasResSpec(resId);
+                        } catch (Throwable ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+        }
+        Collections.reverse(threads);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(TestUtils.dumpPackages(eager), TestUtils.dumpPackages(lazy));
+    }
+
+    @Test
+    public void snapshotRoundTripTest() throws BrutException, IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        ResPackage[] decoded = ARSCDecoder.decode(mapArsc(), false, true, new ResTable(), snapshot)
+                .getPackages();
+        ResPackage[] restored = ARSCDecoder.decodeSnapshot(ByteBuffer.wrap(snapshot.toByteArray()), true,
+                new ResTable()).getPackages();
+        assertEquals(TestUtils.dumpPackages(decoded), TestUtils.dumpPackages(restored));
+    }
+
+    @Test
+    public void damagedSnapshotFailsCleanlyTest() throws BrutException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ARSCDecoder.decode(mapArsc(), false, true, new ResTable(), out);
+        byte[] snapshot = out.toByteArray();
+
+        // truncate or overwrite the snapshot all over, only AndrolibException may come out
+        for (int i = 0; i < 400; i++) {
+            int position = (int) ((long) snapshot.length * i / 400);
+            byte[] damaged;
+            if (i % 4 == 0) {
+                damaged = Arrays.copyOf(snapshot, position);
+            } else {
+                damaged = snapshot.clone();
+                Arrays.fill(damaged, position, Math.min(position + 4, damaged.length),
+                        (byte) (i % 4 == 1 ? 0xff : 0x7f));
+            }
+
+            try {
+                ARSCDecoder.decodeSnapshot(ByteBuffer.wrap(damaged), true, new ResTable());
+            } catch (AndrolibException ex) {
+                // expected for most of them
+            }
+        }
+    }
+
+    private static ByteBuffer mapArsc() throws BrutException {
+        return ((ZipRODirectory) sApk.getDirectory()).mapStoredFile("resources.arsc");
+    }
+
+    private static ResPackage[] decode(boolean lazy) throws BrutException, IOException {
+        ResTable resTable = new ResTable();
+        resTable.setLazyLoading(lazy);
+        return ARSCDecoder.decode(mapArsc(), false, true, resTable).getPackages();
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sApk;
+}
@@ -0,0 +1,185 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class BuildManifestTest {
+
+    @Before
+    public void setUp() throws BrutException, IOException {
+        mAppDir = OS.createTempDirectory();
+        new File(mAppDir, "build").mkdirs();
+        mSmaliDir = new File(mAppDir, "smali");
+        for (int i = 0; i < 5; i++) {
+            writeFile("smali/a/File" + i + ".smali", "class " + i, OLD_TIME);
+        }
+        writeFile("smali/File.smali", "class", OLD_TIME);
+    }
+
+    @After
+    public void tearDown() throws BrutException {
+        OS.rmdir(mAppDir);
+    }
+
+    @Test
+    public void unchangedFilesAreNotModifiedTest() throws AndrolibException {
+        BuildManifest manifest = newBuiltManifest();
+        assertFalse(manifest.isModified("smali", inputs()));
+        manifest.save();
+
+        assertFalse(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void touchedFilesAreNotModifiedTest() throws AndrolibException, IOException {
+        newBuiltManifest().save();
+        new File(mSmaliDir, "a/File2.smali").setLastModified(OLD_TIME + 60000);
+        writeFile("smali/File.smali", "class", OLD_TIME + 60000);
+
+        assertFalse(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void changedContentIsModifiedTest() throws AndrolibException, IOException {
+        newBuiltManifest().save();
+        writeFile("smali/a/File2.smali", "class 2 changed", OLD_TIME);
+
+        assertTrue(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void sameSizeAndTimeButDifferentContentIsModifiedTest() throws AndrolibException, IOException {
+        // recorded right after an edit, then edited again within the same time stamp
+        long time = System.currentTimeMillis() / 1000 * 1000;
+        writeFile("smali/File.smali", "first", time);
+        newBuiltManifest().save();
+        writeFile("smali/File.smali", "other", time);
+
+        BuildManifest manifest = new BuildManifest(mAppDir, JOBS);
+        assertTrue(manifest.isModified("smali", inputs()));
+        manifest.update("smali");
+        manifest.save();
+
+        // the same content is recognized by its hash
+        assertFalse(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void deletedFileIsModifiedTest() throws AndrolibException {
+        newBuiltManifest().save();
+        assertTrue(new File(mSmaliDir, "a/File3.smali").delete());
+
+        assertTrue(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void addedFileIsModifiedTest() throws AndrolibException, IOException {
+        newBuiltManifest().save();
+        writeFile("smali/a/File5.smali", "class 5", OLD_TIME);
+
+        assertTrue(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void stageStaysModifiedUntilUpdatedTest() throws AndrolibException {
+        BuildManifest manifest = new BuildManifest(mAppDir, JOBS);
+        assertTrue(manifest.isModified("smali", inputs()));
+        assertTrue(manifest.isModified("smali", inputs()));
+        manifest.save();
+
+        assertTrue(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void stagesAreRecordedSeparatelyTest() throws AndrolibException {
+        BuildManifest manifest = newBuiltManifest();
+        File[] dex = new File[] { new File(mAppDir, "build/apk/classes.dex") };
+        assertTrue(manifest.isModified("classes.dex", dex));
+        assertFalse(manifest.isModified("smali", inputs()));
+    }
+
+    @Test
+    public void oldManifestVersionRebuildsTest() throws AndrolibException, IOException {
+        newBuiltManifest().save();
+        File file = new File(mAppDir, "build/apktool.manifest");
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(content.startsWith("apktool-build-manifest 1"));
+        writeFile("build/apktool.manifest", content.replace("apktool-build-manifest 1", "apktool-build-manifest 0"),
+                OLD_TIME);
+
+        assertTrue(new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+    }
+
+    @Test
+    public void corruptManifestRebuildsTest() throws AndrolibException, IOException {
+        newBuiltManifest().save();
+        File file = new File(mAppDir, "build/apktool.manifest");
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+
+        String[] corrupt = new String[] {
+                "",
+                "garbage",
+                content.substring(0, content.length() / 2),
+                content + "smali\tsmali/File9.smali\t1\n",
+                content.replaceFirst("\t\\d+\t", "\tsize\t"),
+                content.replaceFirst("\t[0-9a-f]{40}", "\tnull"),
+                content.replaceFirst("\t[0-9a-f]{40}", "\t0123"),
+        };
+        for (String manifest : corrupt) {
+            writeFile("build/apktool.manifest", manifest, OLD_TIME);
+            assertTrue(manifest, new BuildManifest(mAppDir, JOBS).isModified("smali", inputs()));
+        }
+    }
+
+    /**
+     * Returns a manifest that has recorded the current smali folder.
+     */
+    private BuildManifest newBuiltManifest() throws AndrolibException {
+        BuildManifest manifest = new BuildManifest(mAppDir, JOBS);
+        assertTrue(manifest.isModified("smali", inputs()));
+        manifest.update("smali");
+        return manifest;
+    }
+
+    private File[] inputs() {
+        return new File[] { mSmaliDir };
+    }
+
+    private void writeFile(String path, String content, long modifiedTime) throws IOException {
+        File file = new File(mAppDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(modifiedTime);
+    }
+
+    private File mAppDir;
+    private File mSmaliDir;
+
+    private final static int JOBS = 2;
+    private final static long OLD_TIME = 1400000000000L;
+}
@@ -0,0 +1,112 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResResSpec;
+import brut.androlib.res.data.ResResource;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.data.value.ResScalarValue;
+import brut.androlib.res.decoder.ARSCDecoder;
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.directory.ZipRODirectory;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that tables keeping scalar values compact read back the same values as tables
+ * building every value when decoded.
+ */
+public class CompactValuesTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        TestUtils.copyResourceDir(CompactValuesTest.class, "brut/apktool/issue767/", sTmpDir);
+        sApk = new ExtFile(sTmpDir, "issue767.apk");
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void compactAndEagerValuesMatchTest() throws BrutException {
+        ResPackage[] eager = decode(false, false);
+        ResPackage[] compact = decode(true, false);
+        assertEquals(TestUtils.dumpPackages(eager), TestUtils.dumpPackages(compact));
+
+        // compact values are built on each read, eager ones are kept
+        assertEquals(0, countRebuiltValues(eager));
+        assertTrue(countRebuiltValues(compact) > 0);
+    }
+
+    @Test
+    public void lazyCompactAndEagerValuesMatchTest() throws BrutException {
+        assertEquals(TestUtils.dumpPackages(decode(false, false)), TestUtils.dumpPackages(decode(true, true)));
+    }
+
+    @Test
+    public void replacedCompactValueIsEagerTest() throws BrutException {
+        ResPackage[] compact = decode(true, false);
+        for (ResPackage pkg : compact) {
+            for (ResResSpec spec : pkg.listResSpecs()) {
+                for (ResResource res : spec.listResources()) {
+                    if (! (res.getValue() instanceof ResScalarValue) || res.getValue() == res.getValue()) {
+                        continue;
+                    }
+                    ResScalarValue value = (ResScalarValue) res.getValue();
+                    res.replace(value);
+                    assertSame(value, spec.getResource(res.getConfig()).getValue());
+                    return;
+                }
+            }
+        }
+        fail("no compact value found");
+    }
+
+    private static int countRebuiltValues(ResPackage[] pkgs) throws BrutException {
+        int count = 0;
+        for (ResPackage pkg : pkgs) {
+            for (ResResSpec spec : pkg.listResSpecs()) {
+                for (ResResource res : spec.listResources()) {
+                    if (res.getValue() != res.getValue()) {
+                        assertTrue(res.getValue() instanceof ResScalarValue);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static ResPackage[] decode(boolean compact, boolean lazy) throws BrutException {
+        ResTable resTable = new ResTable();
+        resTable.setCompactValues(compact);
+        resTable.setLazyLoading(lazy);
+        return ARSCDecoder.decode(((ZipRODirectory) sApk.getDirectory()).mapStoredFile("resources.arsc"),
+                false, true, resTable).getPackages();
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sApk;
+}
@@ -0,0 +1,200 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.AndrolibResources;
+import brut.androlib.res.FrameworkPackageCache;
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FrameworkSnapshotTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        sSnapshot = new File(sTmpDir, "1.snapshot");
+
+        // every load must go through the snapshot, not the shared package cache
+        sCacheSize = FrameworkPackageCache.getInstance().getMaxSize();
+        FrameworkPackageCache.getInstance().setMaxSize(0);
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        FrameworkPackageCache.getInstance().setMaxSize(sCacheSize);
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void snapshotRoundTripTest() throws BrutException, IOException {
+        List<String> decoded = loadFramework();
+        assertTrue(sSnapshot.isFile());
+        assertEquals(decoded, loadFramework());
+    }
+
+    @Test
+    public void damagedSnapshotIsRebuiltTest() throws BrutException, IOException {
+        List<String> expected = loadFramework();
+
+        // keep the header, so the snapshot still claims to match the framework apk
+        byte[] damaged = Files.readAllBytes(sSnapshot.toPath());
+        Arrays.fill(damaged, damaged.length / 2, damaged.length, (byte) 0xff);
+        Files.write(sSnapshot.toPath(), damaged);
+
+        assertEquals(expected, loadFramework());
+        assertFalse(Arrays.equals(damaged, Files.readAllBytes(sSnapshot.toPath())));
+        assertEquals(expected, loadFramework());
+    }
+
+    @Test
+    public void sameSizeAndTimeSkipHashingTest() throws BrutException, IOException {
+        List<String> expected = loadFramework();
+        File apk = new File(sTmpDir, "1.apk");
+        byte[] original = Files.readAllBytes(apk.toPath());
+        long modified = apk.lastModified();
+        try {
+            // an apk that can't even be read still loads, so it was neither hashed nor decoded
+            Files.write(apk.toPath(), new byte[original.length]);
+            apk.setLastModified(modified);
+            assertEquals(expected, loadFramework());
+        } finally {
+            Files.write(apk.toPath(), original);
+            apk.setLastModified(modified);
+        }
+    }
+
+    @Test
+    public void touchedApkKeepsSnapshotTest() throws BrutException, IOException {
+        List<String> expected = loadFramework();
+        File apk = new File(sTmpDir, "1.apk");
+        byte[] before = Files.readAllBytes(sSnapshot.toPath());
+
+        apk.setLastModified(apk.lastModified() - 60000);
+        assertEquals(expected, loadFramework());
+
+        // only the modification time in the header was rewritten
+        byte[] after = Files.readAllBytes(sSnapshot.toPath());
+        assertEquals(before.length, after.length);
+        assertArrayEquals(Arrays.copyOfRange(before, 0, 16), Arrays.copyOfRange(after, 0, 16));
+        assertFalse(Arrays.equals(Arrays.copyOfRange(before, 16, 24), Arrays.copyOfRange(after, 16, 24)));
+        assertArrayEquals(Arrays.copyOfRange(before, 24, before.length),
+                Arrays.copyOfRange(after, 24, after.length));
+    }
+
+    @Test
+    public void changedApkRebuildsSnapshotTest() throws BrutException, IOException {
+        List<String> expected = loadFramework();
+        File apk = new File(sTmpDir, "1.apk");
+        byte[] original = Files.readAllBytes(apk.toPath());
+        byte[] before = Files.readAllBytes(sSnapshot.toPath());
+        try {
+            // same resources, other bytes
+            ByteArrayOutputStream changed = new ByteArrayOutputStream();
+            try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(original));
+                 ZipOutputStream out = new ZipOutputStream(changed)) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    out.putNextEntry(new ZipEntry(entry.getName()));
+                    IOUtils.copy(in, out);
+                    out.closeEntry();
+                }
+                out.setComment("changed");
+            }
+            Files.write(apk.toPath(), changed.toByteArray());
+
+            assertEquals(expected, loadFramework());
+            byte[] after = Files.readAllBytes(sSnapshot.toPath());
+            assertFalse(Arrays.equals(Arrays.copyOfRange(before, 24, 64), Arrays.copyOfRange(after, 24, 64)));
+        } finally {
+            Files.write(apk.toPath(), original);
+        }
+    }
+
+    @Test
+    public void concurrentFirstLoadsTest() throws Exception {
+        final List<String> expected = loadFramework();
+
+        // every thread finds no framework folder yet, like the workers of a batch decode
+        final File frameworkDir = new File(sTmpDir, "fresh/framework");
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        assertEquals(expected, loadFramework(frameworkDir));
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(Arrays.asList("1.apk", "1.snapshot"), Arrays.asList(sortedNames(frameworkDir)));
+    }
+
+    private static String[] sortedNames(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static List<String> loadFramework() throws BrutException {
+        return loadFramework(sTmpDir);
+    }
+
+    private static List<String> loadFramework(File frameworkDir) throws BrutException {
+        AndrolibResources androlibResources = new AndrolibResources();
+        androlibResources.apkOptions = new ApkOptions();
+        androlibResources.apkOptions.frameworkFolderLocation = frameworkDir.getAbsolutePath();
+        ResPackage pkg = androlibResources.loadFrameworkPkg(new ResTable(androlibResources), 1, null);
+        return TestUtils.dumpPackages(new ResPackage[] { pkg });
+    }
+
+    private static ExtFile sTmpDir;
+    private static File sSnapshot;
+    private static int sCacheSize;
+}
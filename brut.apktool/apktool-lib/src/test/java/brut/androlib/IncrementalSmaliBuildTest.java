@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.util.ExtFile;
+import brut.androlib.src.SmaliBuilder;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that smali folders built through the fragment cache give the same dex as a direct build,
+ * both on the first build and on rebuilds after a file changed.
+ */
+public class IncrementalSmaliBuildTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        sSmaliDir = new ExtFile(sTmpDir, "smali");
+        sCacheDir = new File(sTmpDir, "build/smali_cache/smali");
+
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            writeClass(i, "first");
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void cachedBuildsMatchDirectBuildsTest() throws BrutException, IOException {
+        // first build assembles every fragment, the second one reuses them all
+        assertSameDex(build("direct-1.dex", false), build("cached-1.dex", true));
+        assertEquals(CLASS_COUNT, countFragments());
+        assertSameDex(build("direct-1.dex", false), build("cached-2.dex", true));
+
+        // only the changed class gets a new fragment, its old one is dropped
+        writeClass(3, "second");
+        writeClass(CLASS_COUNT - 1, "second");
+        byte[] rebuilt = build("cached-3.dex", true);
+        assertSameDex(build("direct-2.dex", false), rebuilt);
+        assertEquals(CLASS_COUNT, countFragments());
+        assertFalse(Arrays.equals(build("direct-1.dex", false), rebuilt));
+    }
+
+    @Test
+    public void serialAndParallelDirectBuildsMatchTest() throws BrutException, IOException {
+        File serial = new File(sTmpDir, "serial.dex");
+        SmaliBuilder.build(sSmaliDir, serial, 1);
+        assertSameDex(Files.readAllBytes(serial.toPath()), build("parallel.dex", false));
+    }
+
+    private static byte[] build(String name, boolean cached) throws BrutException, IOException {
+        File dex = new File(sTmpDir, name);
+        dex.delete();
+        if (cached) {
+            SmaliBuilder.build(sSmaliDir, dex, JOBS, sCacheDir);
+        } else {
+            SmaliBuilder.build(sSmaliDir, dex, JOBS);
+        }
+        return Files.readAllBytes(dex.toPath());
+    }
+
+    private static void assertSameDex(byte[] expected, byte[] actual) {
+        assertTrue(expected.length > 0);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static int countFragments() {
+        File[] fragments = sCacheDir.listFiles();
+        return fragments == null ? 0 : fragments.length;
+    }
+
+    /**
+     * Writes a class extending the previous one, so the dex has to order them by hierarchy.
+     */
+    private static void writeClass(int index, String message) throws IOException {
+        String superClass = index == 0 ? "Ljava/lang/Object;" : "Lbrut/test/Class" + (index - 1) + ";";
+        String smali = ".class public Lbrut/test/Class" + index + ";\n"
+                + ".super " + superClass + "\n\n"
+                + ".field private static final TAG:Ljava/lang/String; = \"Class" + index + "\"\n\n"
+                + ".method public constructor <init>()V\n"
+                + "    .registers 1\n"
+                + "    invoke-direct {p0}, " + superClass + "-><init>()V\n"
+                + "    return-void\n"
+                + ".end method\n\n"
+                + ".method public static say()V\n"
+                + "    .registers 2\n"
+                + "    sget-object v0, Ljava/lang/System;->out:Ljava/io/PrintStream;\n"
+                + "    const-string v1, \"" + message + " " + index + "\"\n"
+                + "    invoke-virtual {v0, v1}, Ljava/io/PrintStream;->println(Ljava/lang/String;)V\n"
+                + "    return-void\n"
+                + ".end method\n";
+
+        // written in reverse index order, so directory order differs from the class hierarchy
+        File file = new File(sSmaliDir, "brut/test/File" + (CLASS_COUNT - index) + ".smali");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), smali.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sSmaliDir;
+    private static File sCacheDir;
+
+    private final static int CLASS_COUNT = 8;
+    private final static int JOBS = 3;
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that decoding and building with several jobs gives the same output as the
+ * serial code paths.
+ */
+public class ParallelDecodeTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        TestUtils.cleanFrameworkFile();
+
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        sTestOrigDir = new ExtFile(sTmpDir, "testapp-orig");
+        LOGGER.info("Unpacking testapp...");
+        TestUtils.copyResourceDir(ParallelDecodeTest.class, "brut/apktool/testapp/", sTestOrigDir);
+
+        LOGGER.info("Building testapp.apk...");
+        sTestApk = new File(sTmpDir, "testapp.apk");
+        new Androlib(getOptions(JOBS)).build(sTestOrigDir, sTestApk);
+
+        sSerialDir = new ExtFile(sTmpDir, "testapp-serial");
+        sParallelDir = new ExtFile(sTmpDir, "testapp-parallel");
+        decode(sTestApk, sSerialDir, 1);
+        decode(sTestApk, sParallelDir, JOBS);
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void parallelDecodeMatchesSerialDecodeTest() throws IOException {
+        assertSameFiles(sSerialDir, sParallelDir);
+    }
+
+    @Test
+    public void parallelRebuildRoundTripTest() throws BrutException, IOException {
+        File rebuiltApk = new File(sTmpDir, "testapp-rebuilt.apk");
+        new Androlib(getOptions(JOBS)).build(new ExtFile(sParallelDir), rebuiltApk);
+        assertTrue(rebuiltApk.isFile());
+
+        ExtFile redecodedDir = new ExtFile(sTmpDir, "testapp-redecoded");
+        decode(rebuiltApk, redecodedDir, JOBS);
+        for (String path : listFiles(sSerialDir)) {
+            if (path.startsWith("res/") || path.startsWith("smali")) {
+                assertTrue("missing after rebuild: " + path, new File(redecodedDir, path).isFile());
+            }
+        }
+    }
+
+    private static void decode(File apk, File outDir, int jobs) throws BrutException, IOException {
+        LOGGER.info("Decoding " + apk.getName() + " with " + jobs + " jobs...");
+        ApkDecoder apkDecoder = new ApkDecoder(apk);
+        apkDecoder.setJobs(jobs);
+        apkDecoder.setOutDir(outDir);
+        apkDecoder.decode();
+    }
+
+    private static ApkOptions getOptions(int jobs) {
+        ApkOptions apkOptions = new ApkOptions();
+        apkOptions.jobs = jobs;
+        return apkOptions;
+    }
+
+    private static void assertSameFiles(File expectedDir, File actualDir) throws IOException {
+        Set<String> expected = listFiles(expectedDir);
+        assertEquals(expected, listFiles(actualDir));
+        for (String path : expected) {
+            assertArrayEquals("differs: " + path, Files.readAllBytes(new File(expectedDir, path).toPath()),
+                    Files.readAllBytes(new File(actualDir, path).toPath()));
+        }
+    }
+
+    private static Set<String> listFiles(File dir) {
+        Set<String> files = new TreeSet<String>();
+        listFiles(dir, "", files);
+        return files;
+    }
+
+    private static void listFiles(File dir, String prefix, Set<String> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, prefix + child.getName() + "/", files);
+            } else {
+                files.add(prefix + child.getName());
+            }
+        }
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sTestOrigDir;
+    private static ExtFile sSerialDir;
+    private static ExtFile sParallelDir;
+    private static File sTestApk;
+
+    private final static int JOBS = 4;
+
+    private final static Logger LOGGER = Logger.getLogger(ParallelDecodeTest.class.getName());
+}
@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.err.UndefinedResObject;
+import brut.androlib.res.data.ResID;
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResResSpec;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.data.ResTypeSpec;
+import brut.androlib.res.decoder.ARSCDecoder;
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.directory.ZipRODirectory;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that looking specs up by int id finds the same spec as looking them up by ResID.
+ */
+public class ResSpecLookupTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        TestUtils.copyResourceDir(ResSpecLookupTest.class, "brut/apktool/issue767/", sTmpDir);
+        sApk = new ExtFile(sTmpDir, "issue767.apk");
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void intAndResIdLookupsMatchTest() throws BrutException {
+        ResPackage[] pkgs = ARSCDecoder.decode(((ZipRODirectory) sApk.getDirectory())
+                .mapStoredFile("resources.arsc"), false, true, new ResTable()).getPackages();
+
+        int count = 0;
+        for (ResPackage pkg : pkgs) {
+            for (ResResSpec spec : pkg.listResSpecs()) {
+                int id = spec.getId().id;
+                assertTrue(pkg.hasResSpec(id));
+                assertSame(spec, pkg.getResSpec(id));
+                assertSame(spec, pkg.getResSpec(new ResID(id)));
+                count++;
+            }
+            for (ResTypeSpec type : pkg.listTypes()) {
+                // one past the last entry, in a type and in a type id that don't exist
+                int base = (pkg.getId() << 24) | (type.getId() << 16);
+                assertMissing(pkg, base | type.getEntryCount());
+                assertMissing(pkg, (pkg.getId() << 24) | (0xfe << 16));
+            }
+        }
+        assertTrue(count > 0);
+    }
+
+    @Test
+    public void packageIdZeroIsOwnPackageTest() throws BrutException {
+        ResTable resTable = new ResTable();
+        ResResSpec lib = addSpec(resTable, 0x02, "lib");
+        ResResSpec app = addSpec(resTable, 0x7f, "app");
+
+        // a shared library refers to its own resources with package id 0
+        assertEquals(2, new ResID(0x00010000).package_);
+        assertSame(lib, resTable.getResSpec(0x00010000));
+        assertSame(lib, resTable.getResSpec(0x02010000));
+        assertSame(lib, resTable.getResSpec(new ResID(0x02010000)));
+
+        resTable.setPackageId(0x7f);
+        assertSame(app, resTable.getResSpec(0x00010000));
+        assertSame(app, resTable.getResSpec(0x7f010000));
+        assertSame(app, resTable.getResSpec(new ResID(0x7f010000)));
+        assertSame(lib, resTable.getResSpec(0x02010000));
+    }
+
+    @Test
+    public void removedSpecIsNotFoundTest() throws BrutException {
+        ResTable resTable = new ResTable();
+        ResResSpec spec = addSpec(resTable, 0x7f, "app");
+        ResPackage pkg = spec.getPackage();
+
+        pkg.removeResSpec(spec);
+        assertMissing(pkg, 0x7f010000);
+
+        pkg.addResSpec(spec);
+        assertSame(spec, pkg.getResSpec(0x7f010000));
+        assertSame(spec, pkg.getResSpec(new ResID(0x7f010000)));
+    }
+
+    private static ResResSpec addSpec(ResTable resTable, int pkgId, String pkgName) throws BrutException {
+        ResPackage pkg = new ResPackage(resTable, pkgId, pkgName);
+        ResTypeSpec type = new ResTypeSpec("string", resTable, pkg, (byte) 1, 1);
+        pkg.addType(type);
+        ResResSpec spec = new ResResSpec(new ResID(pkgId, 1, 0), "name", pkg, type);
+        pkg.addResSpec(spec);
+        type.addResSpec(spec);
+        resTable.addPackage(pkg, true);
+        return spec;
+    }
+
+    private static void assertMissing(ResPackage pkg, int id) throws BrutException {
+        assertFalse(pkg.hasResSpec(id));
+        assertFalse(pkg.hasResSpec(new ResID(id)));
+        try {
+            pkg.getResSpec(id);
+            fail("found spec " + new ResID(id));
+        } catch (UndefinedResObject ex) {
+            // expected
+        }
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sApk;
+}
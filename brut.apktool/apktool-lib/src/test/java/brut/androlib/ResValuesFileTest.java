@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.data.ResConfigFlags;
+import brut.androlib.res.data.ResID;
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResResSpec;
+import brut.androlib.res.data.ResResource;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.data.ResType;
+import brut.androlib.res.data.ResTypeSpec;
+import brut.androlib.res.data.ResValuesFile;
+import brut.androlib.res.data.value.ResStringValue;
+import brut.androlib.res.decoder.ARSCDecoder;
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.directory.ZipRODirectory;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that values files list their resources in the order of their specs within the
+ * type, whatever order the resources were added in.
+ */
+public class ResValuesFileTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+        TestUtils.copyResourceDir(ResValuesFileTest.class, "brut/apktool/issue767/", sTmpDir);
+        sApk = new ExtFile(sTmpDir, "issue767.apk");
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void listsResourcesInSpecOrderTest() throws AndrolibException {
+        ResTable resTable = new ResTable();
+        ResPackage pkg = new ResPackage(resTable, 0x7f, "test");
+        ResTypeSpec type = new ResTypeSpec("string", resTable, pkg, (byte) 1, 4);
+        ResType config = new ResType(new ResConfigFlags());
+        // spec order is the order specs were added to the type, not their entry ids
+        List<ResResSpec> specs = new ArrayList<ResResSpec>();
+        int[] entries = { 2, 0, 3, 1 };
+        for (int i = 0; i < entries.length; i++) {
+            ResResSpec spec = new ResResSpec(new ResID(0x7f, 1, entries[i]), "name" + i, pkg, type);
+            type.addResSpec(spec);
+            specs.add(spec);
+        }
+
+        ResValuesFile values = new ResValuesFile(pkg, type, config);
+        for (int i : new int[] { 3, 1, 0, 2 }) {
+            values.addResource(new ResResource(config, specs.get(i), new ResStringValue("v" + i, 0)));
+        }
+        assertEquals(Arrays.asList("name0", "name1", "name2", "name3"), listNames(values));
+
+        // a replaced resource keeps its place, a removed one leaves it
+        ResResource replaced = new ResResource(config, specs.get(1), new ResStringValue("new", 0));
+        values.addResource(replaced);
+        assertEquals(Arrays.asList("name0", "name1", "name2", "name3"), listNames(values));
+        assertTrue(values.listResources().contains(replaced));
+
+        values.removeResource(replaced);
+        assertEquals(Arrays.asList("name0", "name2", "name3"), listNames(values));
+    }
+
+    @Test
+    public void decodedValuesFilesFollowSpecOrderTest() throws BrutException {
+        ResPackage[] pkgs = ARSCDecoder.decode(((ZipRODirectory) sApk.getDirectory())
+                .mapStoredFile("resources.arsc"), false, true, new ResTable()).getPackages();
+
+        int count = 0;
+        for (ResPackage pkg : pkgs) {
+            for (ResValuesFile values : pkg.listValuesFiles()) {
+                List<ResResSpec> expected = new ArrayList<ResResSpec>();
+                for (ResResSpec spec : values.getType().listResSpecs()) {
+                    if (spec.hasResource(values.getConfig())
+                            && values.listResources().contains(spec.getResource(values.getConfig()))) {
+                        expected.add(spec);
+                    }
+                }
+
+                List<ResResSpec> listed = new ArrayList<ResResSpec>();
+                for (ResResource res : values.listResources()) {
+                    listed.add(res.getResSpec());
+                }
+                assertEquals(values.getPath(), expected, listed);
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+    }
+
+    private static List<String> listNames(ResValuesFile values) {
+        List<String> names = new ArrayList<String>();
+        for (ResResource res : values.listResources()) {
+            names.add(res.getResSpec().getName());
+        }
+        return names;
+    }
+
+    private static ExtFile sTmpDir;
+    private static ExtFile sApk;
+}
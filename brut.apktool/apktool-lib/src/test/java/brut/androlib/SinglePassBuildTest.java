@@ -0,0 +1,95 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.util.ExtFile;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an apk written in a single pass holds the same entries as one packaged by aapt.
+ */
+public class SinglePassBuildTest {
+
+    @BeforeClass
+    public static void beforeClass() throws Exception, BrutException {
+        TestUtils.cleanFrameworkFile();
+        sTmpDir = new ExtFile(OS.createTempDirectory());
+
+        sTwoPassApk = build("testapp-two-pass", false);
+        sSinglePassApk = build("testapp-single-pass", true);
+    }
+
+    @AfterClass
+    public static void afterClass() throws BrutException {
+        OS.rmdir(sTmpDir);
+    }
+
+    @Test
+    public void singlePassEntriesMatchTwoPassEntriesTest() throws IOException {
+        Map<String, String> expected = listEntries(sTwoPassApk);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, listEntries(sSinglePassApk));
+    }
+
+    private static File build(String name, boolean singlePass) throws BrutException {
+        ExtFile appDir = new ExtFile(sTmpDir, name);
+        LOGGER.info("Unpacking " + name + "...");
+        TestUtils.copyResourceDir(SinglePassBuildTest.class, "brut/apktool/testapp/", appDir);
+
+        LOGGER.info("Building " + name + ".apk...");
+        ApkOptions apkOptions = new ApkOptions();
+        apkOptions.singlePass = singlePass;
+        File apk = new File(sTmpDir, name + ".apk");
+        new Androlib(apkOptions).build(appDir, apk);
+        return apk;
+    }
+
+    /**
+     * Maps the entry names to their compression method and crc.
+     */
+    private static Map<String, String> listEntries(File apk) throws IOException {
+        Map<String, String> entries = new TreeMap<String, String>();
+        try (ZipFile zip = new ZipFile(apk)) {
+            Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                entries.put(entry.getName(), entry.getMethod() + " " + Long.toHexString(entry.getCrc()));
+            }
+        }
+        return entries;
+    }
+
+    private static ExtFile sTmpDir;
+    private static File sTwoPassApk;
+    private static File sSinglePassApk;
+
+    private final static Logger LOGGER = Logger.getLogger(SinglePassBuildTest.class.getName());
+}
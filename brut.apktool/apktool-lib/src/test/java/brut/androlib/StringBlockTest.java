@@ -0,0 +1,235 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.decoder.StringBlock;
+import brut.util.ExtDataInput;
+import brut.util.LittleEndianDataInput;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StringBlockTest {
+
+    @Test
+    public void readsShortStringsTest() throws IOException {
+        String[] strings = new String[] { "", "app_name", "zażółć gęślą jaźń", "😀 ࠀ" };
+        assertStrings(strings, read(false, strings));
+        assertStrings(strings, read(true, strings));
+    }
+
+    @Test
+    public void readsLongUtf16StringsTest() throws IOException {
+        // lengths of 0x8000 and up take two length fields, the high bit marking the first one
+        String[] strings = new String[] { "before", repeat('a', 0x7fff), repeat('b', 0x8000),
+                repeat('ф', 0x8001), repeat('c', 0x12345), "after" };
+        assertStrings(strings, read(false, strings));
+    }
+
+    @Test
+    public void readsLongUtf8StringsTest() throws IOException {
+        String[] strings = new String[] { "before", repeat('a', 0x7f), repeat('b', 0x80), repeat('ф', 0x3fff),
+                "after" };
+        assertStrings(strings, read(true, strings));
+    }
+
+    @Test
+    public void concurrentGetStringTest() throws Exception {
+        final String[] strings = new String[3000];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = i + " zażółć " + repeat((char) ('a' + i % 26), i % 300);
+        }
+        for (final boolean utf8 : new boolean[] { false, true }) {
+            final StringBlock block = read(utf8, strings);
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 8; t++) {
+                final int step = t % 2 == 0 ? 1 : -1;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            int i = step > 0 ? 0 : strings.length - 1;
+                            for (; i >= 0 && i < strings.length; i += step) {
+                                assertEquals(strings[i], block.getString(i));
+                            }
+                        } catch (Throwable ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Collections.emptyList(), errors);
+        }
+    }
+
+    @Test
+    public void findsStringsTest() throws IOException {
+        String[] strings = new String[] { "", "layout", "string", "zażółć", "😀", repeat('x', 0x8000), "id" };
+        for (boolean utf8 : new boolean[] { false, true }) {
+            StringBlock block = read(utf8, strings);
+            for (int i = 0; i < strings.length; i++) {
+                assertEquals(i, block.find(strings[i]));
+            }
+        }
+    }
+
+    @Test
+    public void findsFirstOfDuplicatedStringsTest() throws IOException {
+        String[] strings = new String[] { "a", "dup", "b", "dup", "", "c", "dup", "" };
+        for (boolean utf8 : new boolean[] { false, true }) {
+            StringBlock block = read(utf8, strings);
+            assertEquals(1, block.find("dup"));
+            assertEquals(4, block.find(""));
+            assertEquals(5, block.find("c"));
+        }
+    }
+
+    @Test
+    public void doesNotFindMissingStringsTest() throws IOException {
+        for (boolean utf8 : new boolean[] { false, true }) {
+            StringBlock block = read(utf8, "layout", "string", "zażółć");
+            assertEquals(-1, block.find("Layout"));
+            assertEquals(-1, block.find("str"));
+            assertEquals(-1, block.find("zazolc"));
+            assertEquals(-1, block.find(""));
+            assertEquals(-1, block.find(null));
+            assertEquals(-1, read(utf8).find("layout"));
+        }
+    }
+
+    @Test
+    public void concurrentFindTest() throws Exception {
+        final String[] strings = new String[2000];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = "string" + i % 1500;
+        }
+        final StringBlock block = read(true, strings);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < strings.length; i++) {
+                            assertEquals(i % 1500, block.find(strings[i]));
+                        }
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    private static void assertStrings(String[] expected, StringBlock block) {
+        assertEquals(expected.length, block.getCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("string " + i, expected[i], block.getString(i));
+        }
+        assertNull(block.getString(expected.length));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Reads a string pool chunk holding strings, laid out like aapt writes it.
+     */
+    static StringBlock read(boolean utf8, String... strings) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            offsets[i] = data.size();
+            if (utf8) {
+                byte[] bytes = strings[i].getBytes(StandardCharsets.UTF_8);
+                writeUtf8Length(data, strings[i].length());
+                writeUtf8Length(data, bytes.length);
+                data.write(bytes);
+                data.write(0);
+            } else {
+                byte[] bytes = strings[i].getBytes(StandardCharsets.UTF_16LE);
+                int length = strings[i].length();
+                if (length > 0x7fff) {
+                    writeShort(data, 0x8000 | length >> 16);
+                }
+                writeShort(data, length & 0xffff);
+                data.write(bytes);
+                writeShort(data, 0);
+            }
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+
+        int headerSize = 7 * 4 + 4 * strings.length;
+        ByteBuffer chunk = ByteBuffer.allocate(headerSize + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putInt(0x001C0001);
+        chunk.putInt(chunk.capacity());
+        chunk.putInt(strings.length);
+        chunk.putInt(0);
+        chunk.putInt(utf8 ? 0x100 : 0);
+        chunk.putInt(headerSize);
+        chunk.putInt(0);
+        for (int offset : offsets) {
+            chunk.putInt(offset);
+        }
+        chunk.put(data.toByteArray());
+
+        return StringBlock.read(new ExtDataInput(new LittleEndianDataInput(
+                new ByteArrayInputStream(chunk.array()))));
+    }
+
+    private static void writeUtf8Length(ByteArrayOutputStream out, int length) {
+        if (length > 0x7f) {
+            out.write(0x80 | length >> 8);
+        }
+        out.write(length & 0xff);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write(value >> 8 & 0xff);
+    }
+}
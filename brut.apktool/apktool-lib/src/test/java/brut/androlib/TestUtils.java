@@ -17,13 +17,19 @@
 package brut.androlib;
 
 import brut.androlib.res.AndrolibResources;
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResResSpec;
+import brut.androlib.res.data.ResResource;
+import brut.androlib.res.data.value.*;
 import brut.common.BrutException;
 import brut.directory.*;
 import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import brut.util.OS;
@@ -160,6 +166,44 @@ public abstract class TestUtils {
         }
     }
 
+    /**
+     * Describes every spec and resource of the packages, one line each, so decoded tables
+     * can be compared.
+     */
+    public static List<String> dumpPackages(ResPackage[] pkgs) throws AndrolibException {
+        List<String> lines = new ArrayList<String>();
+        for (ResPackage pkg : pkgs) {
+            lines.add("package " + pkg.getId() + " " + pkg.getName());
+            for (ResResSpec spec : pkg.listResSpecs()) {
+                lines.add(spec.getId() + " " + spec.getFullName());
+                for (ResResource res : spec.listResources()) {
+                    lines.add("  " + res.getConfig().getFlags().getQualifiers() + " " + describeValue(res.getValue()));
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static String describeValue(ResValue value) {
+        String description = value.getClass().getSimpleName();
+        if (value instanceof ResIntBasedValue) {
+            description += " " + ((ResIntBasedValue) value).getRawIntValue();
+        }
+        if (value instanceof ResFileValue) {
+            description += " " + ((ResFileValue) value).getPath();
+        } else if (value instanceof ResScalarValue) {
+            try {
+                description += " " + ((ResScalarValue) value).encodeAsResXmlValue();
+            } catch (AndrolibException ex) {
+                // references into frameworks that aren't loaded
+                description += " ?";
+            }
+        } else if (value instanceof ResBagValue) {
+            description += " " + ((ResBagValue) value).getParent().getRawIntValue();
+        }
+        return description;
+    }
+
     public static String replaceNewlines(String value) {
         return value.replace("\n", "").replace("\r", "");
     }
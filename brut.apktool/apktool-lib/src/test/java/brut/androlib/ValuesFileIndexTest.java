@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib;
+
+import brut.androlib.res.data.ResConfigFlags;
+import brut.androlib.res.data.ResID;
+import brut.androlib.res.data.ResPackage;
+import brut.androlib.res.data.ResResSpec;
+import brut.androlib.res.data.ResResource;
+import brut.androlib.res.data.ResTable;
+import brut.androlib.res.data.ResType;
+import brut.androlib.res.data.ResTypeSpec;
+import brut.androlib.res.data.ResValuesFile;
+import brut.androlib.res.data.value.ResFileValue;
+import brut.androlib.res.data.value.ResStringValue;
+import brut.androlib.res.data.value.ResValue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the values files listed per type follow resources being replaced and specs
+ * being removed after the package was first listed.
+ */
+public class ValuesFileIndexTest {
+
+    @Before
+    public void setUp() throws AndrolibException {
+        ResTable resTable = new ResTable();
+        mPkg = new ResPackage(resTable, 0x7f, "test");
+        resTable.addPackage(mPkg, true);
+        mStrings = addType(resTable, 1, "string");
+        mBools = addType(resTable, 2, "bool");
+        mConfig = mPkg.getOrCreateConfig(new ResConfigFlags());
+    }
+
+    @Test
+    public void replacedResourceMovesBetweenGroupingsTest() throws AndrolibException {
+        ResResource first = addResource(addSpec(mStrings, 0, "first"), new ResStringValue("a", 0));
+        addResource(addSpec(mStrings, 1, "second"), new ResStringValue("b", 0));
+        addResource(addSpec(mBools, 0, "flag"), new ResStringValue("true", 0));
+        assertEquals(Arrays.asList("first", "second"), listNames(mStrings));
+        assertEquals(Arrays.asList("flag"), listNames(mBools));
+        assertTrue(mPkg.listFiles().isEmpty());
+
+        // a value turned into a file leaves the values file, and comes back once it is a value again
+        first.replace(new ResFileValue("res/values/first.xml", 0));
+        assertEquals(Arrays.asList("second"), listNames(mStrings));
+        assertEquals(1, mPkg.listFiles().size());
+
+        ResResource file = mPkg.listFiles().iterator().next();
+        ResStringValue value = new ResStringValue("c", 0);
+        file.replace(value);
+        assertEquals(Arrays.asList("first", "second"), listNames(mStrings));
+        assertSame(value, listResources(mStrings).get(0).getValue());
+        assertTrue(mPkg.listFiles().isEmpty());
+        assertEquals(Arrays.asList("flag"), listNames(mBools));
+    }
+
+    @Test
+    public void removedDummySpecLeavesValuesFileTest() throws AndrolibException {
+        ResResSpec dummy = addSpec(mBools, 0, "APKTOOL_DUMMY_0");
+        addResource(dummy, new ResStringValue("false", 0));
+        addResource(addSpec(mStrings, 0, "name"), new ResStringValue("a", 0));
+        assertEquals(Arrays.asList("APKTOOL_DUMMY_0"), listNames(mBools));
+
+        // the type's only values file is no longer listed once empty
+        mPkg.removeResSpec(dummy);
+        mBools.removeResSpec(dummy);
+        assertTrue(mPkg.listValuesFiles(mBools).isEmpty());
+        assertEquals(1, mPkg.listValuesFiles().size());
+
+        // as ARSCDecoder does when the real entry shows up later
+        addResource(addSpec(mBools, 0, "real"), new ResStringValue("true", 0));
+        assertEquals(Arrays.asList("real"), listNames(mBools));
+        assertEquals(Arrays.asList("name"), listNames(mStrings));
+        assertEquals(2, mPkg.listValuesFiles().size());
+    }
+
+    private ResTypeSpec addType(ResTable resTable, int id, String name) throws AndrolibException {
+        ResTypeSpec type = new ResTypeSpec(name, resTable, mPkg, (byte) id, 16);
+        mPkg.addType(type);
+        return type;
+    }
+
+    private ResResSpec addSpec(ResTypeSpec type, int entry, String name) throws AndrolibException {
+        ResResSpec spec = new ResResSpec(new ResID(0x7f, type.getId(), entry), name, mPkg, type);
+        mPkg.addResSpec(spec);
+        type.addResSpec(spec);
+        return spec;
+    }
+
+    private ResResource addResource(ResResSpec spec, ResValue value) throws AndrolibException {
+        ResResource res = new ResResource(mConfig, spec, value);
+        mConfig.addResource(res);
+        spec.addResource(res);
+        mPkg.addResource(res);
+        return res;
+    }
+
+    private List<ResResource> listResources(ResTypeSpec type) throws AndrolibException {
+        Collection<ResValuesFile> valuesFiles = mPkg.listValuesFiles(type);
+        assertEquals(1, valuesFiles.size());
+        return new ArrayList<ResResource>(valuesFiles.iterator().next().listResources());
+    }
+
+    private List<String> listNames(ResTypeSpec type) throws AndrolibException {
+        List<String> names = new ArrayList<String>();
+        for (ResResource res : listResources(type)) {
+            names.add(res.getResSpec().getName());
+        }
+        return names;
+    }
+
+    private ResPackage mPkg;
+    private ResTypeSpec mStrings;
+    private ResTypeSpec mBools;
+    private ResType mConfig;
+}
@@ -0,0 +1,215 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib.res;
+
+import brut.androlib.AndrolibException;
+import brut.androlib.res.data.ResPackage;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameworkPackageCacheTest {
+
+    @Before
+    public void setUp() throws BrutException, IOException {
+        mTmpDir = OS.createTempDirectory();
+        mApk1 = newApk("1.apk");
+        mApk2 = newApk("2.apk");
+        mApk3 = newApk("3.apk");
+    }
+
+    @After
+    public void tearDown() throws BrutException {
+        OS.rmdir(mTmpDir);
+    }
+
+    @Test
+    public void countsHitsAndMissesTest() throws AndrolibException {
+        FrameworkPackageCache cache = new FrameworkPackageCache(2);
+        CountingLoader loader = new CountingLoader();
+
+        ResPackage pkg = cache.get(1, null, mApk1, loader);
+        assertSame(pkg, cache.get(1, null, mApk1, loader));
+        assertSame(pkg, cache.get(1, null, mApk1, loader));
+        assertEquals(1, loader.mLoads.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // the tag is part of the key
+        assertNotSame(pkg, cache.get(1, "tag", mApk1, loader));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedTest() throws AndrolibException {
+        FrameworkPackageCache cache = new FrameworkPackageCache(2);
+        CountingLoader loader = new CountingLoader();
+
+        ResPackage pkg1 = cache.get(1, null, mApk1, loader);
+        cache.get(2, null, mApk2, loader);
+        assertSame(pkg1, cache.get(1, null, mApk1, loader));
+        cache.get(3, null, mApk3, loader);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+
+        // 2 was the least recently used one
+        assertSame(pkg1, cache.get(1, null, mApk1, loader));
+        cache.get(2, null, mApk2, loader);
+        assertEquals(4, loader.mLoads.get());
+        assertEquals(2, cache.getEvictionCount());
+
+        cache.setMaxSize(1);
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getEvictionCount());
+    }
+
+    @Test
+    public void changedFrameworkMissesTest() throws AndrolibException, IOException {
+        FrameworkPackageCache cache = new FrameworkPackageCache(4);
+        CountingLoader loader = new CountingLoader();
+        ResPackage pkg = cache.get(1, null, mApk1, loader);
+
+        assertTrue(mApk1.setLastModified(mApk1.lastModified() - 60000));
+        ResPackage touched = cache.get(1, null, mApk1, loader);
+        assertNotSame(pkg, touched);
+
+        long modified = mApk1.lastModified();
+        Files.write(mApk1.toPath(), new byte[] { 1, 2, 3, 4 });
+        mApk1.setLastModified(modified);
+        assertNotSame(touched, cache.get(1, null, mApk1, loader));
+
+        assertEquals(3, loader.mLoads.get());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void concurrentGetsLoadOnceTest() throws Exception {
+        final FrameworkPackageCache cache = new FrameworkPackageCache(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final FrameworkPackageCache.Loader loader = new FrameworkPackageCache.Loader() {
+            @Override
+            public ResPackage load(int id, String frameTag, File apk) throws AndrolibException {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    throw new AndrolibException(ex);
+                }
+                return new ResPackage(null, id, "android");
+            }
+        };
+
+        final List<ResPackage> pkgs = Collections.synchronizedList(new ArrayList<ResPackage>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        pkgs.add(cache.get(1, null, mApk1, loader));
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(1, loads.get());
+        assertEquals(8, pkgs.size());
+        for (ResPackage pkg : pkgs) {
+            assertSame(pkgs.get(0), pkg);
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(7, cache.getHitCount());
+    }
+
+    @Test
+    public void failedLoadIsNotCachedTest() throws AndrolibException {
+        FrameworkPackageCache cache = new FrameworkPackageCache(2);
+        final AtomicInteger loads = new AtomicInteger();
+        FrameworkPackageCache.Loader failing = new FrameworkPackageCache.Loader() {
+            @Override
+            public ResPackage load(int id, String frameTag, File apk) throws AndrolibException {
+                loads.incrementAndGet();
+                throw new AndrolibException("broken framework");
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get(1, null, mApk1, failing);
+                fail("get() should throw");
+            } catch (AndrolibException ex) {
+                assertEquals("broken framework", ex.getMessage());
+            }
+        }
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabledByDefaultTest() {
+        FrameworkPackageCache cache = new FrameworkPackageCache(0);
+        assertFalse(cache.isEnabled());
+        cache.setMaxSize(FrameworkPackageCache.SHARED_SIZE);
+        assertTrue(cache.isEnabled());
+    }
+
+    private File newApk(String name) throws IOException {
+        File apk = new File(mTmpDir, name);
+        Files.write(apk.toPath(), name.getBytes("US-ASCII"));
+        return apk;
+    }
+
+    private static class CountingLoader implements FrameworkPackageCache.Loader {
+        final AtomicInteger mLoads = new AtomicInteger();
+
+        @Override
+        public ResPackage load(int id, String frameTag, File apk) {
+            mLoads.incrementAndGet();
+            return new ResPackage(null, id, "android");
+        }
+    }
+
+    private File mTmpDir;
+    private File mApk1;
+    private File mApk2;
+    private File mApk3;
+}
@@ -0,0 +1,140 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.androlib.src;
+
+import brut.androlib.AndrolibException;
+import brut.androlib.TestUtils;
+import brut.common.BrutException;
+import brut.util.OS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the smali cache is reused for the same dex and options, and never for other
+ * options or for entries left incomplete.
+ */
+public class SmaliDecoderCacheTest {
+
+    @Before
+    public void setUp() throws BrutException {
+        mTmpDir = OS.createTempDirectory();
+        TestUtils.copyResourceDir(SmaliDecoderCacheTest.class, "brut/apktool/issue1234/", mTmpDir);
+        mApk = new File(mTmpDir, "issue1234.apk");
+        mCacheDir = new File(mTmpDir, "smali_cache");
+    }
+
+    @After
+    public void tearDown() throws BrutException {
+        OS.rmdir(mTmpDir);
+    }
+
+    @Test
+    public void secondDecodeReusesCacheTest() throws BrutException, IOException {
+        File entry = decodeOnce("first", 15, false);
+        assertTrue(new File(entry, SmaliDecoder.COMPLETE_MARKER).isFile());
+        assertFalse(new File(mTmpDir, "first/" + SmaliDecoder.COMPLETE_MARKER).exists());
+
+        // a file only present in the cache shows the second decode copied it
+        Files.write(new File(entry, "cached.txt").toPath(), new byte[] { 1 });
+        assertEquals(entry, decodeOnce("second", 15, false));
+        assertTrue(new File(mTmpDir, "second/cached.txt").isFile());
+        List<String> copied = listSmali("second");
+        assertTrue(copied.remove("cached.txt:1"));
+        assertEquals(listSmali("first"), copied);
+    }
+
+    @Test
+    public void otherOptionsMissTest() throws BrutException, IOException {
+        File entry = decodeOnce("first", 15, false);
+        Files.write(new File(entry, "cached.txt").toPath(), new byte[] { 1 });
+
+        File otherApi = decodeOnce("api", 21, false);
+        File debug = decodeOnce("debug", 15, true);
+        assertFalse(entry.equals(otherApi));
+        assertFalse(entry.equals(debug));
+        assertFalse(otherApi.equals(debug));
+        assertFalse(new File(mTmpDir, "api/cached.txt").exists());
+        assertFalse(new File(mTmpDir, "debug/cached.txt").exists());
+        assertEquals(3, mCacheDir.list().length);
+    }
+
+    @Test
+    public void incompleteEntryIsNotUsedTest() throws BrutException, IOException {
+        File entry = decodeOnce("first", 15, false);
+        OS.rmdir(mCacheDir);
+
+        // an entry missing its marker, as left by an interrupted decode
+        assertTrue(entry.mkdirs());
+        Files.write(new File(entry, "partial.txt").toPath(), new byte[] { 1 });
+
+        assertEquals(entry, decodeOnce("second", 15, false));
+        assertFalse(new File(mTmpDir, "second/partial.txt").exists());
+        assertEquals(listSmali("first"), listSmali("second"));
+        assertFalse(new File(entry, "partial.txt").exists());
+        assertTrue(new File(entry, SmaliDecoder.COMPLETE_MARKER).isFile());
+    }
+
+    /**
+     * Decodes the dex into outName and returns the cache entry it created, or the only entry
+     * when it added none.
+     */
+    private File decodeOnce(String outName, int api, boolean debug) throws AndrolibException {
+        List<String> before = mCacheDir.isDirectory() ? Arrays.asList(mCacheDir.list())
+                : Collections.<String>emptyList();
+        SmaliDecoder.decode(mApk, new File(mTmpDir, outName), "classes.dex", debug, api, 1, mCacheDir);
+
+        List<String> added = new ArrayList<>(Arrays.asList(mCacheDir.list()));
+        added.removeAll(before);
+        if (added.isEmpty()) {
+            assertEquals(1, before.size());
+            return new File(mCacheDir, before.get(0));
+        }
+        assertEquals(1, added.size());
+        return new File(mCacheDir, added.get(0));
+    }
+
+    private List<String> listSmali(String outName) {
+        List<String> files = new ArrayList<>();
+        listFiles(new File(mTmpDir, outName), "", files);
+        Collections.sort(files);
+        return files;
+    }
+
+    private static void listFiles(File dir, String prefix, List<String> files) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                listFiles(file, prefix + file.getName() + "/", files);
+            } else {
+                files.add(prefix + file.getName() + ":" + file.length());
+            }
+        }
+    }
+
+    private File mTmpDir;
+    private File mApk;
+    private File mCacheDir;
+}
@@ -20,9 +20,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -30,6 +41,10 @@ public class ZipRODirectory extends AbstractDirectory {
     private ZipFile mZipFile;
     private String mPath;
 
+    // local header offsets by entry name, read from the central directory on first use and
+    // shared with the subdirectories
+    private final AtomicReference<Map<String, Long>> mHeaderOffsets;
+
     public ZipRODirectory(String zipFileName) throws DirectoryException {
         this(zipFileName, "");
     }
@@ -55,12 +70,18 @@ public class ZipRODirectory extends AbstractDirectory {
             throw new DirectoryException(e);
         }
         mPath = path;
+        mHeaderOffsets = new AtomicReference<Map<String, Long>>();
     }
 
     public ZipRODirectory(ZipFile zipFile, String path) {
+        this(zipFile, path, new AtomicReference<Map<String, Long>>());
+    }
+
+    private ZipRODirectory(ZipFile zipFile, String path, AtomicReference<Map<String, Long>> headerOffsets) {
         super();
         mZipFile = zipFile;
         mPath = path;
+        mHeaderOffsets = headerOffsets;
     }
 
     @Override
@@ -110,6 +131,132 @@ public class ZipRODirectory extends AbstractDirectory {
         return entry.getMethod();
     }
 
+    /**
+     * Maps the data of an uncompressed (STORED) entry straight from the zip file, so it
+     * can be read without going through an InputStream. Returns null if the entry is
+     * compressed, missing or its data can't be located.
+     *
+     * The caller holds a mapping of the zip file until the buffer is garbage collected; on
+     * Windows the file can't be deleted or replaced until then.
+     */
+    public ByteBuffer mapStoredFile(String fileName) throws DirectoryException {
+        ZipEntry entry = getZipFile().getEntry(getPath() + fileName);
+        if (entry == null || entry.getMethod() != ZipEntry.STORED || entry.getSize() < 0) {
+            return null;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(getZipFile().getName(), "r")) {
+            FileChannel channel = file.getChannel();
+            Long headerOffset = getHeaderOffsets(channel).get(entry.getName());
+            if (headerOffset == null) {
+                return null;
+            }
+
+            ByteBuffer header = readAt(channel, headerOffset, LOCAL_HEADER_SIZE);
+            if (header == null || header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                return null;
+            }
+            long dataOffset = headerOffset + LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+            if (dataOffset + entry.getSize() > channel.size()) {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.getSize());
+        } catch (IOException ex) {
+            throw new DirectoryException(ex);
+        }
+    }
+
+    /**
+     * Returns the local header offsets of the zip file, reading its central directory on
+     * the first call. The map is empty for archives readCentralDirectory() can't read.
+     */
+    private Map<String, Long> getHeaderOffsets(FileChannel channel) throws IOException {
+        Map<String, Long> offsets = mHeaderOffsets.get();
+        if (offsets == null) {
+            offsets = readHeaderOffsets(channel);
+            // a concurrent first call read the same offsets, either map will do
+            mHeaderOffsets.compareAndSet(null, offsets);
+        }
+        return offsets;
+    }
+
+    private static Map<String, Long> readHeaderOffsets(FileChannel channel) throws IOException {
+        ByteBuffer dir = readCentralDirectory(channel);
+        if (dir == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        Set<String> duplicates = new HashSet<String>();
+        Charset utf8 = Charset.forName("UTF-8");
+        int dirSize = dir.limit();
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= dirSize && dir.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            int nameLength = dir.getShort(pos + 28) & 0xffff;
+            int extraLength = dir.getShort(pos + 30) & 0xffff;
+            int commentLength = dir.getShort(pos + 32) & 0xffff;
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > dirSize) {
+                break;
+            }
+
+            byte[] entryName = new byte[nameLength];
+            dir.position(pos + CENTRAL_HEADER_SIZE);
+            dir.get(entryName);
+            // a duplicated name may not resolve to the entry java.util.zip picks, leave it out
+            String name = new String(entryName, utf8);
+            if (offsets.containsKey(name)) {
+                duplicates.add(name);
+            } else {
+                offsets.put(name, dir.getInt(pos + 42) & 0xffffffffL);
+            }
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        offsets.keySet().removeAll(duplicates);
+        return offsets;
+    }
+
+    /**
+     * Reads the whole central directory of a zip file. Returns null for zip64 or broken
+     * archives, so callers can fall back to java.util.zip.
+     */
+    static ByteBuffer readCentralDirectory(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, END_HEADER_SIZE + 0xffff);
+        ByteBuffer tail = readAt(channel, size - tailSize, tailSize);
+        if (tail == null) {
+            return null;
+        }
+
+        int end = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+
+        long dirSize = tail.getInt(end + 12) & 0xffffffffL;
+        long dirOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (dirOffset == 0xffffffffL || dirOffset + dirSize > size) {
+            return null;
+        }
+        return readAt(channel, dirOffset, (int) dirSize);
+    }
+
+    static ByteBuffer readAt(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
     private void loadAll() {
         mFiles = new LinkedHashSet<String>();
         mDirs = new LinkedHashMap<String, AbstractDirectory>();
@@ -137,7 +284,8 @@ public class ZipRODirectory extends AbstractDirectory {
             }
             
             if (! mDirs.containsKey(subname)) {
-                AbstractDirectory dir = new ZipRODirectory(getZipFile(), getPath() + subname + separator);
+                AbstractDirectory dir = new ZipRODirectory(getZipFile(), getPath() + subname + separator,
+                        mHeaderOffsets);
                 mDirs.put(subname, dir);                
             }
         }
@@ -151,4 +299,10 @@ public class ZipRODirectory extends AbstractDirectory {
         return mZipFile;
     }
 
+    final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    final static int END_HEADER_SIGNATURE = 0x06054b50;
+    final static int LOCAL_HEADER_SIZE = 30;
+    final static int CENTRAL_HEADER_SIZE = 46;
+    final static int END_HEADER_SIZE = 22;
 }
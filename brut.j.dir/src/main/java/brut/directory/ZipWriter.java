@@ -0,0 +1,344 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.directory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import static brut.directory.ZipRODirectory.*;
+
+/**
+ * Writes a zip file from new files, which are compressed here, and from entries of other
+ * zip files, which are copied as they are stored: their compressed data, CRC, method and
+ * sizes are kept, so nothing is inflated or deflated again.
+ *
+ * Names must be unique: adding a file under a name already written fails, and copied
+ * entries whose name was already written are skipped with a warning. Zip64 is not supported.
+ *
+ * Once a write has failed the file is left incomplete, so close() deletes it instead of
+ * writing the central directory.
+ */
+public class ZipWriter implements Closeable {
+    public ZipWriter(File zipFile) throws DirectoryException {
+        mZipFile = zipFile;
+        try {
+            mFile = new RandomAccessFile(zipFile, "rw");
+            mFile.setLength(0);
+        } catch (IOException ex) {
+            throw new DirectoryException(ex);
+        }
+        mChannel = mFile.getChannel();
+    }
+
+    public boolean contains(String name) {
+        return mNames.contains(name);
+    }
+
+    /**
+     * Copies the entries of a zip file, except the excluded ones and the ones already written.
+     * Returns the number of copied entries.
+     */
+    public int copyEntries(File zipFile, Set<String> exclude) throws DirectoryException {
+        checkNotFailed();
+        int count = 0;
+        try (RandomAccessFile source = new RandomAccessFile(zipFile, "r")) {
+            FileChannel in = source.getChannel();
+            ByteBuffer dir = readCentralDirectory(in);
+            if (dir == null) {
+                throw new DirectoryException("Unsupported or broken zip file: " + zipFile);
+            }
+
+            int pos = 0;
+            while (pos + CENTRAL_HEADER_SIZE <= dir.limit() && dir.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+                int nameLength = dir.getShort(pos + 28) & 0xffff;
+                int extraLength = dir.getShort(pos + 30) & 0xffff;
+                int commentLength = dir.getShort(pos + 32) & 0xffff;
+                byte[] nameBytes = new byte[nameLength];
+                dir.position(pos + CENTRAL_HEADER_SIZE);
+                dir.get(nameBytes);
+                String name = new String(nameBytes, UTF_8);
+
+                boolean excluded = exclude != null && exclude.contains(name);
+                if (! excluded && mNames.contains(name)) {
+                    LOGGER.warning("Skipping duplicate zip entry: " + name + " in " + zipFile);
+                } else if (! excluded) {
+                    Entry entry = new Entry(name, nameBytes);
+                    entry.versionMadeBy = dir.getShort(pos + 4);
+                    entry.versionNeeded = dir.getShort(pos + 6);
+                    // sizes go in our local header, so no data descriptor follows the data
+                    entry.flags = dir.getShort(pos + 8) & ~FLAG_DATA_DESCRIPTOR;
+                    entry.method = dir.getShort(pos + 10) & 0xffff;
+                    entry.dosTime = dir.getInt(pos + 12);
+                    entry.crc = dir.getInt(pos + 16);
+                    entry.compressedSize = dir.getInt(pos + 20) & 0xffffffffL;
+                    entry.size = dir.getInt(pos + 24) & 0xffffffffL;
+                    entry.externalAttributes = dir.getInt(pos + 38);
+
+                    long headerOffset = dir.getInt(pos + 42) & 0xffffffffL;
+                    ByteBuffer header = readAt(in, headerOffset, LOCAL_HEADER_SIZE);
+                    if (header == null || header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                        throw new DirectoryException("Broken zip entry: " + name);
+                    }
+                    long dataOffset = headerOffset + LOCAL_HEADER_SIZE
+                            + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+                    entry.offset = mChannel.position();
+                    writeFully(getLocalHeader(entry), entry.offset);
+                    mChannel.position(entry.offset + LOCAL_HEADER_SIZE + nameBytes.length);
+                    transfer(in, dataOffset, entry.compressedSize);
+                    add(entry);
+                    count++;
+                }
+                pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+        } catch (IOException ex) {
+            mFailed = true;
+            throw new DirectoryException(ex);
+        }
+        return count;
+    }
+
+    /**
+     * Adds a file, either STORED or DEFLATED depending on the method.
+     */
+    public void addFile(String name, File file, int method) throws DirectoryException {
+        checkNotFailed();
+        if (mNames.contains(name)) {
+            throw new DirectoryException("Duplicate zip entry: " + name);
+        }
+
+        Entry entry = new Entry(name, name.getBytes(UTF_8));
+        entry.method = method;
+        entry.versionNeeded = (short) (method == ZipEntry.DEFLATED ? 20 : 10);
+        if (entry.nameBytes.length != name.length()) {
+            entry.flags = FLAG_UTF8;
+        }
+        entry.dosTime = toDosTime(file.lastModified());
+        try {
+            // the header is written again once the crc and sizes are known
+            entry.offset = mChannel.position();
+            long dataOffset = entry.offset + LOCAL_HEADER_SIZE + entry.nameBytes.length;
+            mChannel.position(dataOffset);
+
+            CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(file)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(mChannel));
+                if (method == ZipEntry.DEFLATED) {
+                    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                    try {
+                        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+                        entry.size = copy(in, deflaterOut, crc);
+                        deflaterOut.finish();
+                    } finally {
+                        deflater.end();
+                    }
+                } else {
+                    entry.size = copy(in, out, crc);
+                }
+                out.flush();
+            }
+            entry.crc = (int) crc.getValue();
+            entry.compressedSize = mChannel.position() - dataOffset;
+
+            writeFully(getLocalHeader(entry), entry.offset);
+            add(entry);
+        } catch (IOException ex) {
+            mFailed = true;
+            throw new DirectoryException(ex);
+        }
+    }
+
+    /**
+     * Writes the central directory and closes the file, or deletes the file if a write
+     * failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mFailed) {
+            mFile.close();
+            mZipFile.delete();
+            return;
+        }
+
+        boolean finished = false;
+        try {
+            long dirOffset = mChannel.position();
+            for (Entry entry : mEntries) {
+                ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + entry.nameBytes.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(CENTRAL_HEADER_SIGNATURE);
+                header.putShort(entry.versionMadeBy);
+                header.putShort(entry.versionNeeded);
+                header.putShort((short) entry.flags);
+                header.putShort((short) entry.method);
+                header.putInt(entry.dosTime);
+                header.putInt(entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) entry.nameBytes.length);
+                header.putShort((short) 0);  // extra length
+                header.putShort((short) 0);  // comment length
+                header.putShort((short) 0);  // disk number
+                header.putShort((short) 0);  // internal attributes
+                header.putInt(entry.externalAttributes);
+                header.putInt((int) entry.offset);
+                header.put(entry.nameBytes);
+                header.flip();
+                writeFully(header, mChannel.position());
+                mChannel.position(mChannel.position() + header.limit());
+            }
+            long dirSize = mChannel.position() - dirOffset;
+            if (mEntries.size() > 0xffff || dirOffset + dirSize > 0xffffffffL) {
+                throw new IOException("Zip file too large, zip64 is not supported");
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_HEADER_SIGNATURE);
+            end.putShort((short) 0);  // disk number
+            end.putShort((short) 0);  // disk with the central directory
+            end.putShort((short) mEntries.size());
+            end.putShort((short) mEntries.size());
+            end.putInt((int) dirSize);
+            end.putInt((int) dirOffset);
+            end.putShort((short) 0);  // comment length
+            end.flip();
+            writeFully(end, mChannel.position());
+            finished = true;
+        } finally {
+            mFile.close();
+            if (! finished) {
+                mZipFile.delete();
+            }
+        }
+    }
+
+    private void checkNotFailed() throws DirectoryException {
+        if (mFailed) {
+            throw new DirectoryException("Zip file is incomplete after an earlier failure: " + mZipFile);
+        }
+    }
+
+    private void add(Entry entry) throws IOException {
+        if (entry.offset > 0xffffffffL || entry.size > 0xffffffffL || entry.compressedSize > 0xffffffffL) {
+            throw new IOException("Zip entry too large, zip64 is not supported: " + entry.name);
+        }
+        mEntries.add(entry);
+        mNames.add(entry.name);
+    }
+
+    private ByteBuffer getLocalHeader(Entry entry) {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.nameBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort(entry.versionNeeded);
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt(entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) 0);  // extra length
+        header.put(entry.nameBytes);
+        header.flip();
+        return header;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private void transfer(FileChannel in, long offset, long length) throws IOException {
+        while (length > 0) {
+            long count = in.transferTo(offset, length, mChannel);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of zip entry data");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, CRC32 crc) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, count);
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16 | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final String name;
+        final byte[] nameBytes;
+        short versionMadeBy = 20;
+        short versionNeeded = 20;
+        int flags = 0;
+        int method;
+        int dosTime;
+        int crc;
+        long compressedSize;
+        long size;
+        int externalAttributes = 0;
+        long offset;
+
+        Entry(String name, byte[] nameBytes) {
+            this.name = name;
+            this.nameBytes = nameBytes;
+        }
+    }
+
+    private final File mZipFile;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final Set<String> mNames = new HashSet<String>();
+    private boolean mFailed = false;
+
+    private final static int FLAG_DATA_DESCRIPTOR = 0x08;
+    private final static int FLAG_UTF8 = 0x800;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static Logger LOGGER = Logger.getLogger(ZipWriter.class.getName());
+}
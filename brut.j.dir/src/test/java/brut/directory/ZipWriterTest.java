@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ZipWriterTest {
+
+    @Before
+    public void setUp() throws IOException {
+        mTmpDir = Files.createTempDirectory("zipwriter").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mTmpDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTmpDir.delete();
+    }
+
+    @Test
+    public void duplicateFileIsRejectedTest() throws Exception {
+        File zipFile = new File(mTmpDir, "out.zip");
+        try (ZipWriter zip = new ZipWriter(zipFile)) {
+            zip.addFile("a.txt", newFile("a.txt", "first"), ZipEntry.DEFLATED);
+            try {
+                zip.addFile("a.txt", newFile("b.txt", "second"), ZipEntry.STORED);
+                fail("duplicate entry was accepted");
+            } catch (DirectoryException ex) {
+                assertTrue(ex.getMessage().contains("a.txt"));
+            }
+        }
+        assertEquals("first", read(zipFile, "a.txt"));
+    }
+
+    @Test
+    public void copiedEntriesKeepEarlierEntriesTest() throws Exception {
+        File source = new File(mTmpDir, "source.zip");
+        try (ZipWriter zip = new ZipWriter(source)) {
+            zip.addFile("a.txt", newFile("a.txt", "old a"), ZipEntry.DEFLATED);
+            zip.addFile("b.txt", newFile("b.txt", "old b"), ZipEntry.STORED);
+            zip.addFile("c.txt", newFile("c.txt", "old c"), ZipEntry.STORED);
+        }
+
+        File zipFile = new File(mTmpDir, "out.zip");
+        try (ZipWriter zip = new ZipWriter(zipFile)) {
+            zip.addFile("a.txt", newFile("a2.txt", "new a"), ZipEntry.STORED);
+            assertEquals(1, zip.copyEntries(source, Collections.singleton("c.txt")));
+            zip.addFile("c.txt", newFile("c2.txt", "new c"), ZipEntry.DEFLATED);
+        }
+
+        assertEquals("new a", read(zipFile, "a.txt"));
+        assertEquals("old b", read(zipFile, "b.txt"));
+        assertEquals("new c", read(zipFile, "c.txt"));
+    }
+
+    @Test
+    public void failedWriteDeletesOutputTest() throws Exception {
+        File zipFile = new File(mTmpDir, "out.zip");
+        ZipWriter zip = new ZipWriter(zipFile);
+        zip.addFile("a.txt", newFile("a.txt", "first"), ZipEntry.DEFLATED);
+        try {
+            zip.addFile("missing.txt", new File(mTmpDir, "missing.txt"), ZipEntry.STORED);
+            fail("missing file was added");
+        } catch (DirectoryException expected) {
+        }
+        try {
+            zip.addFile("b.txt", newFile("b.txt", "second"), ZipEntry.STORED);
+            fail("write after a failure was accepted");
+        } catch (DirectoryException expected) {
+        }
+        zip.close();
+
+        assertFalse(zipFile.exists());
+    }
+
+    private File newFile(String name, String content) throws IOException {
+        File file = new File(mTmpDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(File zipFile, String name) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            ZipEntry entry = zip.getEntry(name);
+            assertNotNull(name, entry);
+            byte[] bytes = new byte[(int) entry.getSize()];
+            int count = 0;
+            try (InputStream in = zip.getInputStream(entry)) {
+                while (count < bytes.length) {
+                    count += in.read(bytes, count, bytes.length - count);
+                }
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private File mTmpDir;
+}
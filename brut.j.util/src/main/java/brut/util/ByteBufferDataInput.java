@@ -0,0 +1,172 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataInput reading straight from a ByteBuffer in the buffer's byte order, without any
+ * intermediate streams. The buffer position is the read position, so callers may seek
+ * by setting it.
+ */
+public class ByteBufferDataInput implements DataInput {
+    public ByteBufferDataInput(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Reads len ints into array, starting at off.
+     */
+    public void readInts(int[] array, int off, int len) throws IOException {
+        require(len * 4L);
+        mBuffer.asIntBuffer().get(array, off, len);
+        mBuffer.position(mBuffer.position() + len * 4);
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        mBuffer.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = Math.min(n, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return mBuffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        return mBuffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        require(2);
+        return mBuffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        return mBuffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        return mBuffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4);
+        return mBuffer.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(8);
+        return mBuffer.getDouble();
+    }
+
+    /**
+     * Reads bytes as chars up to the end of a line, like DataInputStream.readLine().
+     * Returns null at the end of the buffer.
+     */
+    @Override
+    public String readLine() {
+        if (! mBuffer.hasRemaining()) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (mBuffer.hasRemaining()) {
+            int c = mBuffer.get() & 0xff;
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (mBuffer.hasRemaining() && mBuffer.get(mBuffer.position()) == '\n') {
+                    mBuffer.get();
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a modified UTF-8 string, like DataInputStream.readUTF(). The length is read
+     * with readUnsignedShort(), so in the buffer's byte order.
+     */
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    private void require(long count) throws EOFException {
+        if (mBuffer.remaining() < count) {
+            throw new EOFException();
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+}
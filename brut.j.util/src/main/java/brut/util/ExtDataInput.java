@@ -32,6 +32,14 @@ public class ExtDataInput extends DataInputDelegate {
 
     public int[] readIntArray(int length) throws IOException {
         int[] array = new int[length];
+        if (mDelegate instanceof LittleEndianDataInput) {
+            ((LittleEndianDataInput) mDelegate).readInts(array, 0, length);
+            return array;
+        }
+        if (mDelegate instanceof ByteBufferDataInput) {
+            ((ByteBufferDataInput) mDelegate).readInts(array, 0, length);
+            return array;
+        }
         for(int i = 0; i < length; i++) {
             array[i] = readInt();
         }
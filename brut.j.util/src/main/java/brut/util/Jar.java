@@ -32,7 +32,7 @@ abstract public class Jar {
     private final static Map<String, File> mExtracted =
         new HashMap<String, File>();
 
-    public static File getResourceAsFile(String name) throws BrutException {
+    public static synchronized File getResourceAsFile(String name) throws BrutException {
         File file = mExtracted.get(name);
         if (file == null) {
             file = extractToTmp(name);
@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Little-endian DataInput reading a stream through an internal buffer. Values are decoded
+ * from the buffer, and int arrays are decoded in bulk, so the stream is only called once
+ * per buffer fill.
+ *
+ * The stream is read ahead, so it should not be used by anything else meanwhile.
+ */
+public class LittleEndianDataInput implements DataInput {
+    public LittleEndianDataInput(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public LittleEndianDataInput(InputStream in, int bufferSize) {
+        mIn = in;
+        mBuffer = new byte[Math.max(8, bufferSize)];
+        mView = ByteBuffer.wrap(mBuffer).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads len ints into array, starting at off.
+     */
+    public void readInts(int[] array, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, (mLimit - mPos) / 4);
+            if (count == 0) {
+                require(4);
+                continue;
+            }
+            mView.position(mPos);
+            mView.asIntBuffer().get(array, off, count);
+            mPos += count * 4;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int count = Math.min(len, mLimit - mPos);
+        System.arraycopy(mBuffer, mPos, b, off, count);
+        mPos += count;
+        off += count;
+        len -= count;
+
+        // the buffer is empty now, large reads go straight to the stream
+        while (len > 0) {
+            if (len < mBuffer.length) {
+                require(len);
+                System.arraycopy(mBuffer, mPos, b, off, len);
+                mPos += len;
+                return;
+            }
+            count = mIn.read(b, off, len);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = Math.min(n, mLimit - mPos);
+        mPos += skipped;
+        while (skipped < n) {
+            long count = mIn.skip(n - skipped);
+            if (count <= 0) {
+                // skip() may give up before the end of stream
+                if (mIn.read() < 0) {
+                    break;
+                }
+                count = 1;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return mBuffer[mPos++];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        short value = mView.getShort(mPos);
+        mPos += 2;
+        return value;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        int value = mView.getInt(mPos);
+        mPos += 4;
+        return value;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        long value = mView.getLong(mPos);
+        mPos += 8;
+        return value;
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads bytes as chars up to the end of a line, like DataInputStream.readLine().
+     * Returns null at the end of stream.
+     */
+    @Override
+    public String readLine() throws IOException {
+        if (! fill(1)) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (fill(1)) {
+            int c = mBuffer[mPos++] & 0xff;
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (fill(1) && mBuffer[mPos] == '\n') {
+                    mPos++;
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a modified UTF-8 string, like DataInputStream.readUTF(). The length is read
+     * with readUnsignedShort(), so little-endian.
+     */
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /**
+     * Makes sure at least count bytes are buffered, moving the unread ones to the start.
+     */
+    private void require(int count) throws IOException {
+        if (! fill(count)) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Like require(), but returns false instead of throwing at the end of stream.
+     */
+    private boolean fill(int count) throws IOException {
+        if (mLimit - mPos >= count) {
+            return true;
+        }
+        mLimit -= mPos;
+        System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit);
+        mPos = 0;
+        while (mLimit < count) {
+            int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read < 0) {
+                return false;
+            }
+            mLimit += read;
+        }
+        return true;
+    }
+
+    private final InputStream mIn;
+    private final byte[] mBuffer;
+    private final ByteBuffer mView;
+    private int mPos = 0;
+    private int mLimit = 0;
+
+    private final static int DEFAULT_BUFFER_SIZE = 8192;
+}
@@ -0,0 +1,196 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package brut.util;
+
+import brut.common.BrutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Filter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Runs independent tasks on a bounded pool of worker threads.
+ *
+ * Tasks are awaited in the order they were submitted, so the reported failure is
+ * always the first failing task in submission order, regardless of which task
+ * happened to finish first. Once a failure is found, remaining tasks are cancelled.
+ *
+ * Log records of a task, from any logger published through the root logger's handlers,
+ * are held back and published by await() in submission order as well, so the log reads
+ * the same on every run. Records of tasks cancelled after a failure are dropped.
+ */
+public class TaskRunner {
+    public interface Task {
+        void run() throws BrutException;
+    }
+
+    public TaskRunner(int jobs) {
+        this(jobs, "brut-task");
+    }
+
+    public TaskRunner(int jobs, final String threadPrefix) {
+        installLogCapture();
+        mExecutor = newExecutor(jobs, threadPrefix);
+    }
+
+    public void submit(final Task task) {
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+        mRecords.add(records);
+        mFutures.add(mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws BrutException {
+                List<LogRecord> outer = sCapturedRecords.get();
+                sCapturedRecords.set(records);
+                try {
+                    task.run();
+                } finally {
+                    sCapturedRecords.set(outer);
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Waits for every submitted task and shuts the pool down. Throws the exception of
+     * the first failed task (in submission order).
+     */
+    public void await() throws BrutException {
+        try {
+            for (int i = 0; i < mFutures.size(); i++) {
+                try {
+                    mFutures.get(i).get();
+                    publish(mRecords.get(i));
+                } catch (ExecutionException ex) {
+                    publish(mRecords.get(i));
+                    cancelAll();
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof BrutException) {
+                        throw (BrutException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new BrutException(cause);
+                } catch (CancellationException ex) {
+                    // cancelled by an earlier failure
+                }
+            }
+        } catch (InterruptedException ex) {
+            cancelAll();
+            Thread.currentThread().interrupt();
+            throw new BrutException(ex);
+        } finally {
+            mFutures.clear();
+            mRecords.clear();
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Returns a fixed pool of named daemon threads, for callers consuming the results of
+     * their tasks as they come instead of awaiting them all, so a forgotten pool never
+     * keeps the JVM alive.
+     */
+    public static ExecutorService newExecutor(int jobs, final String threadPrefix) {
+        return Executors.newFixedThreadPool(Math.max(1, jobs), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadPrefix + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static int defaultJobs() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Publishes records held back from a finished task. Inside another runner's task they
+     * are held back again, by that task.
+     */
+    private static void publish(List<LogRecord> records) {
+        // the task has finished, so the list is no longer written
+        for (LogRecord record : records) {
+            String name = record.getLoggerName();
+            Logger.getLogger(name == null ? "" : name).log(record);
+        }
+        records.clear();
+    }
+
+    /**
+     * Puts a CaptureFilter in front of the filter of every root handler, once per handler.
+     */
+    private static void installLogCapture() {
+        Logger root = Logger.getLogger("");
+        synchronized (TaskRunner.class) {
+            for (Handler handler : root.getHandlers()) {
+                if (! (handler.getFilter() instanceof CaptureFilter)) {
+                    handler.setFilter(new CaptureFilter(handler.getFilter()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds back the records logged by a thread running a task, for the other threads it
+     * defers to the original filter.
+     */
+    private static class CaptureFilter implements Filter {
+        private final Filter mFilter;
+
+        CaptureFilter(Filter filter) {
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean isLoggable(LogRecord record) {
+            List<LogRecord> records = sCapturedRecords.get();
+            if (records == null) {
+                return mFilter == null || mFilter.isLoggable(record);
+            }
+            // every root handler sees the same record in turn, keep it once
+            if (records.isEmpty() || records.get(records.size() - 1) != record) {
+                records.add(record);
+            }
+            return false;
+        }
+    }
+
+    private void cancelAll() {
+        for (Future<Void> future : mFutures) {
+            future.cancel(true);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final List<Future<Void>> mFutures = new ArrayList<Future<Void>>();
+    private final List<List<LogRecord>> mRecords = new ArrayList<List<LogRecord>>();
+
+    private final static ThreadLocal<List<LogRecord>> sCapturedRecords = new ThreadLocal<List<LogRecord>>();
+}
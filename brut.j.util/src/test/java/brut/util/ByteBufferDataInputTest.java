@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferDataInputTest {
+
+    @Test
+    public void readsLittleEndianValuesTest() throws IOException {
+        ByteBufferDataInput in = newInput(new byte[] {
+                0x01, 0x02, 0x03, 0x04, (byte) 0xfe, (byte) 0xff, 0x7f });
+        assertEquals(0x04030201, in.readInt());
+        assertEquals((short) 0xfffe, in.readShort());
+        assertEquals(0x7f, in.readUnsignedByte());
+        assertEquals(7, in.position());
+    }
+
+    @Test(expected = EOFException.class)
+    public void throwsAtEndOfBufferTest() throws IOException {
+        newInput(new byte[] { 1, 2, 3 }).readInt();
+    }
+
+    @Test
+    public void readsIntArraysTest() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 5).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 5; i++) {
+            buffer.putInt(i * 0x01010101);
+        }
+        buffer.flip();
+        ExtDataInput in = new ExtDataInput(new ByteBufferDataInput(buffer));
+        assertEquals(0, in.readInt());
+        assertArrayEquals(new int[] { 0x01010101, 0x02020202, 0x03030303 }, in.readIntArray(3));
+        assertEquals(0x04040404, in.readInt());
+    }
+
+    @Test
+    public void readsLinesTest() throws IOException {
+        ByteBufferDataInput in = newInput("one\ntwo\r\nthree\rfour".getBytes("US-ASCII"));
+        assertEquals("one", in.readLine());
+        assertEquals("two", in.readLine());
+        assertEquals("three", in.readLine());
+        assertEquals("four", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    public void readsUtfTest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF("zażółć \u0000 😀");
+
+        // writeUTF() stores the length big-endian, as the buffer is read here
+        ByteBufferDataInput in = new ByteBufferDataInput(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals("zażółć \u0000 😀", in.readUTF());
+    }
+
+    private static ByteBufferDataInput newInput(byte[] bytes) {
+        return new ByteBufferDataInput(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LittleEndianDataInputTest {
+
+    @Test
+    public void readsValuesAcrossBufferBoundaryTest() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put((byte) 0x7f).putInt(0x12345678).putShort((short) 0xfffe)
+                .putLong(0x0102030405060708L).putInt(-1).putShort((short) 0x4142);
+
+        // an 8 byte buffer and 3 bytes per read() make every value straddle a refill
+        LittleEndianDataInput in = new LittleEndianDataInput(slowStream(bytes.array(), 3), 8);
+        assertEquals(0x7f, in.readUnsignedByte());
+        assertEquals(0x12345678, in.readInt());
+        assertEquals((short) 0xfffe, in.readShort());
+        assertEquals(0x0102030405060708L, in.readLong());
+        assertEquals(-1, in.readInt());
+        assertEquals('䅂', in.readChar());
+    }
+
+    @Test
+    public void readsIntArrayAcrossBufferBoundaryTest() throws IOException {
+        int[] expected = new int[1000];
+        ByteBuffer bytes = ByteBuffer.allocate(2 + expected.length * 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putShort((short) 0x0203);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = i * 0x01020304;
+            bytes.putInt(expected[i]);
+        }
+        bytes.putInt(0xcafebabe);
+
+        ExtDataInput in = new ExtDataInput(new LittleEndianDataInput(slowStream(bytes.array(), 7), 64));
+        assertEquals(0x0203, in.readShort());
+        assertArrayEquals(expected, in.readIntArray(expected.length));
+        assertEquals(0xcafebabe, in.readInt());
+    }
+
+    @Test
+    public void readsFullyAndSkipsTest() throws IOException {
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        LittleEndianDataInput in = new LittleEndianDataInput(slowStream(data, 5), 16);
+        assertEquals(0, in.readByte());
+
+        // larger than the buffer, so partly served from the stream directly
+        byte[] chunk = new byte[100];
+        in.readFully(chunk);
+        assertEquals(1, chunk[0]);
+        assertEquals(100, chunk[99]);
+
+        assertEquals(50, in.skipBytes(50));
+        assertEquals((byte) 151, in.readByte());
+        assertEquals(148, in.skipBytes(1000));
+    }
+
+    @Test(expected = EOFException.class)
+    public void throwsAtEndOfStreamTest() throws IOException {
+        new LittleEndianDataInput(new ByteArrayInputStream(new byte[] { 1, 2, 3 })).readInt();
+    }
+
+    @Test
+    public void readsLinesTest() throws IOException {
+        byte[] data = "one\ntwo\r\nthree\rfour".getBytes("US-ASCII");
+        LittleEndianDataInput in = new LittleEndianDataInput(slowStream(data, 2), 8);
+        assertEquals("one", in.readLine());
+        assertEquals("two", in.readLine());
+        assertEquals("three", in.readLine());
+        assertEquals("four", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    @Test
+    public void readsUtfTest() throws IOException {
+        byte[] utf = "zażółć".getBytes("UTF-8");
+        ByteBuffer bytes = ByteBuffer.allocate(2 + utf.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putShort((short) utf.length).put(utf);
+
+        LittleEndianDataInput in = new LittleEndianDataInput(slowStream(bytes.array(), 3), 8);
+        assertEquals("zażółć", in.readUTF());
+    }
+
+    private static InputStream slowStream(byte[] data, final int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ *  Copyright 2014 Ryszard Wiśniewski <brut.alll@gmail.com>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package brut.util;
+
+import brut.common.BrutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TaskRunnerTest {
+
+    @Test
+    public void runsEveryTaskTest() throws BrutException {
+        final AtomicIntegerArray done = new AtomicIntegerArray(100);
+        TaskRunner runner = new TaskRunner(4);
+        for (int i = 0; i < done.length(); i++) {
+            final int index = i;
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() {
+                    done.incrementAndGet(index);
+                }
+            });
+        }
+        runner.await();
+
+        for (int i = 0; i < done.length(); i++) {
+            assertEquals(1, done.get(i));
+        }
+    }
+
+    @Test
+    public void neverRunsMoreThanJobsTest() throws BrutException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        TaskRunner runner = new TaskRunner(3);
+        for (int i = 0; i < 30; i++) {
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), now));
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ex) {
+                        throw new BrutException(ex);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+        runner.await();
+
+        assertTrue(maxRunning.get() <= 3);
+        assertTrue(maxRunning.get() >= 2);
+    }
+
+    @Test
+    public void reportsFirstFailureInSubmissionOrderTest() throws BrutException {
+        final CountDownLatch laterFailed = new CountDownLatch(1);
+        TaskRunner runner = new TaskRunner(2);
+
+        // the first task fails only after the second one has failed
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                try {
+                    laterFailed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new BrutException(ex);
+                }
+                throw new BrutException("first");
+            }
+        });
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                laterFailed.countDown();
+                throw new BrutException("second");
+            }
+        });
+
+        try {
+            runner.await();
+            fail("await() should throw");
+        } catch (BrutException ex) {
+            assertEquals("first", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void rethrowsRuntimeExceptionsTest() throws BrutException {
+        TaskRunner runner = new TaskRunner(2);
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken");
+            }
+        });
+
+        try {
+            runner.await();
+            fail("await() should throw");
+        } catch (IllegalStateException ex) {
+            assertEquals("broken", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void cancelsPendingTasksAfterFailureTest() throws BrutException {
+        final AtomicInteger started = new AtomicInteger();
+        TaskRunner runner = new TaskRunner(1);
+        runner.submit(new TaskRunner.Task() {
+            @Override
+            public void run() throws BrutException {
+                throw new BrutException("failed");
+            }
+        });
+        for (int i = 0; i < 50; i++) {
+            runner.submit(new TaskRunner.Task() {
+                @Override
+                public void run() throws BrutException {
+                    started.incrementAndGet();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        throw new BrutException(ex);
+                    }
+                }
+            });
+        }
+
+        try {
+            runner.await();
+            fail("await() should throw");
+        } catch (BrutException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+        assertTrue(started.get() < 50);
+    }
+
+    @Test
+    public void logsInSubmissionOrderTest() throws BrutException {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (isLoggable(record)) {
+                    messages.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger root = Logger.getLogger("");
+        root.addHandler(handler);
+        try {
+            // later tasks log first, the inner runner's records stay within their task
+            final Logger logger = Logger.getLogger(TaskRunnerTest.class.getName());
+            TaskRunner runner = new TaskRunner(4);
+            for (int i = 0; i < 4; i++) {
+                final int index = i;
+                runner.submit(new TaskRunner.Task() {
+                    @Override
+                    public void run() throws BrutException {
+                        try {
+                            Thread.sleep(30 * (4 - index));
+                        } catch (InterruptedException ex) {
+                            throw new BrutException(ex);
+                        }
+                        logger.info("task " + index + " start");
+                        TaskRunner inner = new TaskRunner(2);
+                        for (int j = 0; j < 2; j++) {
+                            final int innerIndex = j;
+                            inner.submit(new TaskRunner.Task() {
+                                @Override
+                                public void run() throws BrutException {
+                                    try {
+                                        Thread.sleep(20 * (2 - innerIndex));
+                                    } catch (InterruptedException ex) {
+                                        throw new BrutException(ex);
+                                    }
+                                    logger.info("task " + index + "." + innerIndex);
+                                }
+                            });
+                        }
+                        inner.await();
+                        logger.info("task " + index + " end");
+                    }
+                });
+            }
+            logger.info("submitted");
+            runner.await();
+        } finally {
+            root.removeHandler(handler);
+        }
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("submitted");
+        for (int i = 0; i < 4; i++) {
+            expected.add("task " + i + " start");
+            expected.add("task " + i + ".0");
+            expected.add("task " + i + ".1");
+            expected.add("task " + i + " end");
+        }
+        assertEquals(expected, messages);
+    }
+}